@@ -19,7 +19,7 @@ public class AdvertisingIdAdapter {
     }
 
     public static void setAdvertisingId(final Context context, final StatisticalStore store, final DeviceId deviceId) {
-        new Thread(new Runnable() {
+        Statistical.sharedInstance().getScheduler().submitBlocking(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -39,7 +39,7 @@ public class AdvertisingIdAdapter {
                     }
                 }
             }
-        }).start();
+        });
     }
 
     private static String getAdvertisingId(Context context) throws Throwable{
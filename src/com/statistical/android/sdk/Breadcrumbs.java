@@ -0,0 +1,124 @@
+package com.statistical.android.sdk;
+
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 崩溃日志环形缓冲区
+ * The breadcrumbs sent with crash reports: a fixed number of the latest records, each
+ * with the time it was added, the name of the thread that added it and at most
+ * MAX_LENGTH characters. Records are added without locking from any thread, claiming a
+ * slot with an atomic counter and overwriting the oldest record once the ring is full.
+ * A snapshot reads the ring in order into a single builder and skips slots that were
+ * overwritten while it was reading.
+ */
+final class Breadcrumbs {
+    /**
+     * 保留的记录数，2的幂
+     */
+    static final int CAPACITY = 128;
+    /**
+     * 每条记录的最大字符数
+     */
+    static final int MAX_LENGTH = 256;
+    private static final int MASK = CAPACITY - 1;
+    private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+    private static final class Record {
+        final long sequence;
+        final long time;
+        final String thread;
+        final String text;
+
+        Record(final long sequence, final long time, final String thread, final String text) {
+            this.sequence = sequence;
+            this.time = time;
+            this.thread = thread;
+            this.text = text;
+        }
+    }
+
+    private static final AtomicReferenceArray<Record> records = new AtomicReferenceArray<Record>(CAPACITY);
+    // sequence number of the next record
+    private static final AtomicLong next = new AtomicLong();
+    // records before this sequence number were already sent
+    private static final AtomicLong sent = new AtomicLong();
+
+    private Breadcrumbs() {
+    }
+
+    /**
+     * 添加一条记录
+     */
+    static void add(final String record) {
+        String text = String.valueOf(record);
+        if (text.length() > MAX_LENGTH) {
+            text = text.substring(0, MAX_LENGTH);
+        }
+        final long sequence = next.getAndIncrement();
+        records.set((int) (sequence & MASK), new Record(sequence, System.currentTimeMillis(), Thread.currentThread().getName(), text));
+    }
+
+    /**
+     * 返回尚未发送的记录并标记为已发送
+     * Returns the records added since the last snapshot, oldest first, one per line as
+     * "HH:mm:ss.SSS [thread] text", and marks them as sent.
+     */
+    static String snapshot() {
+        final long end = next.get();
+        final long start = Math.max(sent.get(), end - CAPACITY);
+        if (start >= end) {
+            return "";
+        }
+        final TimeZone timeZone = TimeZone.getDefault();
+        final StringBuilder builder = new StringBuilder((int) (end - start) * 64);
+        for (long sequence = start; sequence < end; sequence++) {
+            final Record record = records.get((int) (sequence & MASK));
+            // not written yet or already overwritten by a newer record
+            if (record == null || record.sequence != sequence) {
+                continue;
+            }
+            appendTime(builder, record.time + timeZone.getOffset(record.time));
+            builder.append(" [").append(record.thread).append("] ").append(record.text).append('\n');
+        }
+        advance(end);
+        return builder.toString();
+    }
+
+    private static void advance(final long end) {
+        long current;
+        do {
+            current = sent.get();
+        } while (current < end && !sent.compareAndSet(current, end));
+    }
+
+    private static void appendTime(final StringBuilder builder, final long localMillis) {
+        final long millisOfDay = ((localMillis % MILLIS_PER_DAY) + MILLIS_PER_DAY) % MILLIS_PER_DAY;
+        appendPadded(builder, millisOfDay / 3600000, 2);
+        builder.append(':');
+        appendPadded(builder, millisOfDay / 60000 % 60, 2);
+        builder.append(':');
+        appendPadded(builder, millisOfDay / 1000 % 60, 2);
+        builder.append('.');
+        appendPadded(builder, millisOfDay % 1000, 3);
+    }
+
+    private static void appendPadded(final StringBuilder builder, final long value, final int digits) {
+        if (digits > 2 && value < 100) {
+            builder.append('0');
+        }
+        if (value < 10) {
+            builder.append('0');
+        }
+        builder.append(value);
+    }
+
+    // for unit testing
+    static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            records.set(i, null);
+        }
+        sent.set(next.get());
+    }
+}
@@ -17,7 +17,14 @@ import javax.net.ssl.X509TrustManager;
 
 
 
+/**
+ * 公钥绑定
+ * Accepts a server only if the platform trusts its chain and the leaf certificate's
+ * public key is one of the pinned keys. The platform trust managers are created once
+ * per process, so a handshake does not reload the system keystore.
+ */
 public final class CertificateTrustManager implements X509TrustManager {
+    private static X509TrustManager[] platformTrustManagers;
 
     private final List<byte[]> keys;
 
@@ -48,13 +55,9 @@ public final class CertificateTrustManager implements X509TrustManager {
         }
 
         // Perform customary SSL/TLS checks
-        TrustManagerFactory tmf;
         try {
-            tmf = TrustManagerFactory.getInstance("X509");
-            tmf.init((KeyStore) null);
-
-            for (TrustManager trustManager : tmf.getTrustManagers()) {
-                ((X509TrustManager) trustManager).checkServerTrusted(chain, authType);
+            for (X509TrustManager trustManager : getPlatformTrustManagers()) {
+                trustManager.checkServerTrusted(chain, authType);
             }
 
         } catch (Exception e) {
@@ -72,6 +75,25 @@ public final class CertificateTrustManager implements X509TrustManager {
         throw new CertificateException("Public keys didn't pass checks");
     }
 
+    /**
+     * Returns the trust managers of the system keystore, creating them on first use.
+     */
+    static synchronized X509TrustManager[] getPlatformTrustManagers() throws Exception {
+        if (platformTrustManagers == null) {
+            final TrustManagerFactory tmf = TrustManagerFactory.getInstance("X509");
+            tmf.init((KeyStore) null);
+
+            final List<X509TrustManager> trustManagers = new ArrayList<>();
+            for (TrustManager trustManager : tmf.getTrustManagers()) {
+                if (trustManager instanceof X509TrustManager) {
+                    trustManagers.add((X509TrustManager) trustManager);
+                }
+            }
+            platformTrustManagers = trustManagers.toArray(new X509TrustManager[trustManagers.size()]);
+        }
+        return platformTrustManagers;
+    }
+
     public void checkClientTrusted(X509Certificate[] xcs, String string) {
         // throw new
         // UnsupportedOperationException("checkClientTrusted: Not supported yet.");
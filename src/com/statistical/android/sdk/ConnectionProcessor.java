@@ -10,94 +10,84 @@ import org.json.JSONObject;
 import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
 
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 
 /**
  * 连接处理器
  * 
  */
 public class ConnectionProcessor implements Runnable {
-    private static final int CONNECT_TIMEOUT_IN_MILLISECONDS = 30000;
-    private static final int READ_TIMEOUT_IN_MILLISECONDS = 30000;
-
     private final StatisticalStore store_;
     private final DeviceId deviceId_;
-    private final String serverURL_;
-    private final SSLContext sslContext_;
+    private final EndpointSelector endpointSelector_;
+    private final SSLSocketFactory sslSocketFactory_;
+    private final PictureUploader pictureUploader_;
+    private final UploadScheduler uploadScheduler_;
+    private final NetworkEstimator networkEstimator_;
+    private final TrafficMeter trafficMeter_;
+    private final MetricsFingerprint metricsFingerprint_;
+    private final int[] laneCredits_ = new int[StatisticalStore.Lane.values().length];
 
-    ConnectionProcessor(final String serverURL, final StatisticalStore store, final DeviceId deviceId, final SSLContext sslContext) {
-        serverURL_ = serverURL;
+    ConnectionProcessor(final EndpointSelector endpointSelector, final StatisticalStore store, final DeviceId deviceId, final SSLSocketFactory sslSocketFactory, final PictureUploader pictureUploader, final UploadScheduler uploadScheduler, final NetworkEstimator networkEstimator, final TrafficMeter trafficMeter, final MetricsFingerprint metricsFingerprint) {
+        endpointSelector_ = endpointSelector;
         store_ = store;
         deviceId_ = deviceId;
-        sslContext_ = sslContext;
+        sslSocketFactory_ = sslSocketFactory;
+        pictureUploader_ = pictureUploader;
+        uploadScheduler_ = uploadScheduler;
+        networkEstimator_ = networkEstimator;
+        trafficMeter_ = trafficMeter;
+        metricsFingerprint_ = metricsFingerprint;
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.FROYO) {
             System.setProperty("http.keepAlive", "false");
         }
     }
 
-    URLConnection urlConnectionForEventData(final String eventData) throws IOException {
-        String urlStr = serverURL_ + "/a?";
+    URLConnection urlConnectionForEventData(final String serverURL, final String eventData) throws IOException {
+        String urlStr = serverURL + "/a?";
         if(!eventData.contains("&crash="))
             urlStr += eventData;
-        final URL url = new URL(urlStr);
+        URL url = new URL(urlStr);
+        final String picturePath = UserData.getPicturePathFromQuery(url);
+        if (Statistical.sharedInstance().isLoggingEnabled()) {
+            Log.d(Statistical.TAG, "Got picturePath: " + picturePath);
+        }
+        if(!picturePath.equals("")){
+            // requests queued by earlier versions still carry the picture, hand it over to the uploader
+            if (pictureUploader_ != null) {
+                pictureUploader_.upload(picturePath);
+            }
+            // a request that only carried the picture is left with a bare &user_details
+            url = new URL(urlStr.replaceFirst("&" + UserData.PICTURE_PATH_KEY + "=[^&]*", "").replaceFirst("&user_details(?=&|$)", ""));
+        }
         final HttpURLConnection conn;
         if (Statistical.publicKeyPinCertificates == null) {
             conn = (HttpURLConnection)url.openConnection();
         } else {
             HttpsURLConnection c = (HttpsURLConnection)url.openConnection();
-            c.setSSLSocketFactory(sslContext_.getSocketFactory());
+            c.setSSLSocketFactory(sslSocketFactory_);
             conn = c;
         }
-        conn.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
-        conn.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
+        final boolean post = eventData.contains("&crash=");
+        if (networkEstimator_ == null) {
+            conn.setConnectTimeout(NetworkEstimator.DEFAULT_TIMEOUT_IN_MILLISECONDS);
+            conn.setReadTimeout(NetworkEstimator.DEFAULT_TIMEOUT_IN_MILLISECONDS);
+        } else {
+            conn.setConnectTimeout(networkEstimator_.getConnectTimeout(networkType()));
+            conn.setReadTimeout(networkEstimator_.getReadTimeout(networkType(), post ? eventData.length() : 0));
+        }
         conn.setUseCaches(false);
         conn.setDoInput(true);
-        String picturePath = UserData.getPicturePathFromQuery(url);
-        if (Statistical.sharedInstance().isLoggingEnabled()) {
-            Log.d(Statistical.TAG, "Got picturePath: " + picturePath);
-        }
-        if(!picturePath.equals("")){
-        	
-        	File binaryFile = new File(picturePath);
-        	conn.setDoOutput(true);
-        	String boundary = Long.toHexString(System.currentTimeMillis());
-        	String CRLF = "\r\n";
-        	String charset = "UTF-8";
-        	conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
-        	OutputStream output = conn.getOutputStream();
-        	PrintWriter writer = new PrintWriter(new OutputStreamWriter(output, charset), true);
-            writer.append("--" + boundary).append(CRLF);
-            writer.append("Content-Disposition: form-data; name=\"binaryFile\"; filename=\"" + binaryFile.getName() + "\"").append(CRLF);
-            writer.append("Content-Type: " + URLConnection.guessContentTypeFromName(binaryFile.getName())).append(CRLF);
-            writer.append("Content-Transfer-Encoding: binary").append(CRLF);
-            writer.append(CRLF).flush();
-            FileInputStream fileInputStream = new FileInputStream(binaryFile);
-            byte[] buffer = new byte[1024];
-            int len;
-            try {
-                while ((len = fileInputStream.read(buffer)) != -1) {
-                    output.write(buffer, 0, len);
-                }
-            }catch(IOException ex){
-                ex.printStackTrace();
-            }
-            output.flush(); 
-            writer.append(CRLF).flush(); 
-            fileInputStream.close();
-            writer.append("--" + boundary + "--").append(CRLF).flush();
-        }
-        else if(eventData.contains("&crash=")){
+        if(post){
             if (Statistical.sharedInstance().isLoggingEnabled()) {
                 Log.d(Statistical.TAG, "Using post because of crash");
             }
@@ -116,27 +106,103 @@ public class ConnectionProcessor implements Runnable {
         return conn;
     }
 
+    /**
+     * Whether a failed request speaks against the endpoint: no response at all or a
+     * server error. Client errors are about the request, not the endpoint.
+     */
+    private static boolean isEndpointFailure(final URLConnection conn) {
+        if (!(conn instanceof HttpURLConnection)) {
+            return true;
+        }
+        try {
+            final int responseCode = ((HttpURLConnection) conn).getResponseCode();
+            return responseCode == -1 || responseCode >= 500;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private String networkType() {
+        return uploadScheduler_ == null ? "wifi" : uploadScheduler_.getNetworkType();
+    }
+
+    /**
+     * 按权重公平地选择下一个通道
+     * Picks the lane to serve next with smooth weighted round-robin over the lanes that
+     * have requests the upload policy allows, so the critical lane goes first without
+     * starving the others.
+     * @param queued stored requests per lane, indexed by lane ordinal
+     * @return the lane to serve, or null if no lane may be served now
+     */
+    StatisticalStore.Lane nextLane(final String[][] queued) {
+        int backlog = 0;
+        for (String[] requests : queued) {
+            backlog += requests.length;
+        }
+
+        StatisticalStore.Lane next = null;
+        int totalWeight = 0;
+        for (StatisticalStore.Lane lane : StatisticalStore.Lane.values()) {
+            if (queued[lane.ordinal()].length == 0 || (uploadScheduler_ != null && !uploadScheduler_.canUpload(lane, backlog))) {
+                continue;
+            }
+            laneCredits_[lane.ordinal()] += lane.weight;
+            totalWeight += lane.weight;
+            if (next == null || laneCredits_[lane.ordinal()] > laneCredits_[next.ordinal()]) {
+                next = lane;
+            }
+        }
+        if (next != null) {
+            laneCredits_[next.ordinal()] -= totalWeight;
+        }
+        return next;
+    }
+
     @Override
     public void run() {
+        final StatisticalStore.Lane[] lanes = StatisticalStore.Lane.values();
+        final String[][] queued = new String[lanes.length][];
         while (true) {
-            final String[] storedEvents = store_.connections();
-            if (storedEvents == null || storedEvents.length == 0) {
+            boolean empty = true;
+            for (StatisticalStore.Lane lane : lanes) {
+                queued[lane.ordinal()] = store_.connections(lane);
+                empty &= queued[lane.ordinal()].length == 0;
+            }
+            if (empty) {
                 break;
             }
 
+            final StatisticalStore.Lane lane = nextLane(queued);
+            if (lane == null) {
+                if (Statistical.sharedInstance().isLoggingEnabled()) {
+                    Log.i(Statistical.TAG, "Upload policy defers the queued requests");
+                }
+                break;
+            }
+            final String storedEvent = queued[lane.ordinal()][0];
+
             if (deviceId_.getId() == null) {
                 if (Statistical.sharedInstance().isLoggingEnabled()) {
-                    Log.i(Statistical.TAG, "No Device ID available yet, skipping request " + storedEvents[0]);
+                    Log.i(Statistical.TAG, "No Device ID available yet, skipping request " + storedEvent);
                 }
                 break;
             }
-            final String eventData = storedEvents[0] + "&device_id=" + deviceId_.getId() + "&session_id=" + store_.getBeginSession() + deviceId_.getId();
+            final String eventData = MetricsFingerprint.withoutMarker(storedEvent) + "&device_id=" + deviceId_.getId() + "&session_id=" + store_.getBeginSession() + deviceId_.getId();
 
+            final String serverURL = endpointSelector_.current();
+            if (serverURL == null) {
+                // halted while the queue was being sent
+                break;
+            }
             URLConnection conn = null;
             BufferedInputStream responseStream = null;
+            final long requestBytes = serverURL.length() + "/a?".length() + eventData.length();
+            final long start = System.nanoTime();
+            long connectedAt = 0;
             try {
-                conn = urlConnectionForEventData(eventData);
+                conn = urlConnectionForEventData(serverURL, eventData);
                 conn.connect();
+                connectedAt = System.nanoTime();
 
                 responseStream = new BufferedInputStream(conn.getInputStream());
                 final ByteArrayOutputStream responseData = new ByteArrayOutputStream(256); 
@@ -144,6 +210,13 @@ public class ConnectionProcessor implements Runnable {
                 while ((c = responseStream.read()) != -1) {
                     responseData.write(c);
                 }
+                if (trafficMeter_ != null) {
+                    trafficMeter_.record(networkType(), requestBytes, responseData.size());
+                }
+                if (networkEstimator_ != null) {
+                    networkEstimator_.record(networkType(), (connectedAt - start) / 1000000, (System.nanoTime() - connectedAt) / 1000000,
+                            eventData.length() + responseData.size());
+                }
 
                 boolean success = true;
                 if (conn instanceof HttpURLConnection) {
@@ -164,17 +237,36 @@ public class ConnectionProcessor implements Runnable {
                 }
 
                 if (success) {
+                    endpointSelector_.onSuccess(serverURL, (System.nanoTime() - start) / 1000000);
                     if (Statistical.sharedInstance().isLoggingEnabled()) {
                         Log.d(Statistical.TAG, "ok ->" + eventData);
                     }
 
-                    store_.removeConnection(storedEvents[0]);
+                    if (metricsFingerprint_ != null) {
+                        metricsFingerprint_.onAcknowledged(storedEvent, deviceId_.getId());
+                    }
+                    store_.removeConnection(storedEvent, lane);
                 }
                 else {
                     break;
                 }
             }
             catch (Exception e) {
+                if (connectedAt != 0 && trafficMeter_ != null && e instanceof IOException) {
+                    // the request went out even though no usable response came back
+                    trafficMeter_.record(networkType(), requestBytes, 0);
+                }
+                if (e instanceof IOException && isEndpointFailure(conn)) {
+                    endpointSelector_.onFailure(serverURL);
+                }
+                if (e instanceof SocketTimeoutException && networkEstimator_ != null) {
+                    final long now = System.nanoTime();
+                    if (connectedAt == 0) {
+                        networkEstimator_.recordTimeout(networkType(), true, (now - start) / 1000000);
+                    } else {
+                        networkEstimator_.recordTimeout(networkType(), false, (now - connectedAt) / 1000000);
+                    }
+                }
                 if (Statistical.sharedInstance().isLoggingEnabled()) {
                     Log.w(Statistical.TAG, "Got exception while trying to submit event data: " + eventData, e);
                 }
@@ -189,9 +281,13 @@ public class ConnectionProcessor implements Runnable {
                 }
             }
         }
+        // the counters are written once per run instead of after every request
+        if (trafficMeter_ != null) {
+            trafficMeter_.flush();
+        }
     }
 
-    String getServerURL() { return serverURL_; }
+    String getServerURL() { return endpointSelector_.current(); }
     StatisticalStore getCountlyStore() { return store_; }
     DeviceId getDeviceId() { return deviceId_; }
 }
@@ -2,27 +2,57 @@
 package com.statistical.android.sdk;
 
 import android.content.Context;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Future;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 
 /**
  * ConnectionQueue队列会话和事件数据，并定时发送数据到后台线程Count.ly服务器。
  */
 public class ConnectionQueue {
+	/**
+	 * TLS会话缓存的大小和有效期，用于会话复用
+	 */
+	private static final int SSL_SESSION_CACHE_SIZE = 8;
+	private static final int SSL_SESSION_TIMEOUT_IN_SECONDS = 60 * 60;
+	private static SSLSocketFactory sharedSslSocketFactory_;
+	private static List<String> sharedSslContextCertificates_;
+
 	private StatisticalStore store_;
-	private ExecutorService executor_;
+	private StatisticalScheduler scheduler_;
 	private String appKey_;
 	private Context context_;
 	private String serverURL_;
 	private Future<?> connectionProcessorFuture_;
 	private DeviceId deviceId_;
-	private SSLContext sslContext_;
+	private SSLSocketFactory sslSocketFactory_;
 	private Statistical.CountlyMode mode_;
+	private final PictureUploader pictureUploader_ = new PictureUploader(this);
+	private final UploadScheduler uploadScheduler_ = new UploadScheduler(this);
+	private final NetworkEstimator networkEstimator_ = new NetworkEstimator();
+	private final EndpointSelector endpointSelector_ = new EndpointSelector();
+	private final TrafficMeter trafficMeter_ = new TrafficMeter();
+	private final MetricsFingerprint metricsFingerprint_ = new MetricsFingerprint();
+	private final DeviceSnapshot deviceSnapshot_ = new DeviceSnapshot(this);
+	private final NetworkState networkState_ = new NetworkState(this);
+	private final CrashContext crashContext_ = new CrashContext(this);
+	private final CrashJournal crashJournal_ = new CrashJournal(this);
+	private final CrashGrouper crashGrouper_ = new CrashGrouper(this);
+	private final MainThreadWatchdog mainThreadWatchdog_ = new MainThreadWatchdog(this);
+	private final ResourceSampler resourceSampler_ = new ResourceSampler(this);
+	private final ViewTracker viewTracker_ = new ViewTracker(this);
+	private final LifecycleTracker lifecycleTracker_ = new LifecycleTracker(this);
+	private final SessionManager sessionManager_ = new SessionManager(this);
+	private final FrameTracker frameTracker_ = new FrameTracker();
+	private final StartupTracer startupTracer_ = new StartupTracer();
+	private final NetworkTracker networkTracker_ = new NetworkTracker();
+	private final TraceAggregator traceAggregator_ = new TraceAggregator();
+	private List<String> additionalServerURLs_ = new ArrayList<>();
 
 	Statistical.CountlyMode getMode() {
 		return mode_;
@@ -54,18 +84,149 @@ public class ConnectionQueue {
 
 	void setServerURL(final String serverURL) {
 		serverURL_ = serverURL;
+		updateEndpoints();
 
 		if (Statistical.publicKeyPinCertificates == null) {
-			sslContext_ = null;
-		} else {
+			sslSocketFactory_ = null;
+		} else if (serverURL != null) {
+			sslSocketFactory_ = sslSocketFactoryForPinnedCertificates(Statistical.publicKeyPinCertificates);
+		}
+	}
+
+	List<String> getAdditionalServerURLs() {
+		return additionalServerURLs_;
+	}
+
+	/**
+	 * 设置备用服务器，与主服务器一起按健康状况和延迟选择
+	 */
+	void setAdditionalServerURLs(final List<String> serverURLs) {
+		additionalServerURLs_ = new ArrayList<>(serverURLs);
+		updateEndpoints();
+	}
+
+	private void updateEndpoints() {
+		final List<String> endpoints = new ArrayList<>();
+		if (serverURL_ != null) {
+			endpoints.add(serverURL_);
+			endpoints.addAll(additionalServerURLs_);
+		}
+		endpointSelector_.setEndpoints(endpoints);
+	}
+
+	EndpointSelector getEndpointSelector() {
+		return endpointSelector_;
+	}
+
+	TrafficMeter getTrafficMeter() {
+		return trafficMeter_;
+	}
+
+	MetricsFingerprint getMetricsFingerprint() {
+		return metricsFingerprint_;
+	}
+
+	DeviceSnapshot getDeviceSnapshot() {
+		return deviceSnapshot_;
+	}
+
+	NetworkState getNetworkState() {
+		return networkState_;
+	}
+
+	CrashContext getCrashContext() {
+		return crashContext_;
+	}
+
+	CrashJournal getCrashJournal() {
+		return crashJournal_;
+	}
+
+	CrashGrouper getCrashGrouper() {
+		return crashGrouper_;
+	}
+
+	MainThreadWatchdog getMainThreadWatchdog() {
+		return mainThreadWatchdog_;
+	}
+
+	ResourceSampler getResourceSampler() {
+		return resourceSampler_;
+	}
+
+	ViewTracker getViewTracker() {
+		return viewTracker_;
+	}
+
+	LifecycleTracker getLifecycleTracker() {
+		return lifecycleTracker_;
+	}
+
+	SessionManager getSessionManager() {
+		return sessionManager_;
+	}
+
+	FrameTracker getFrameTracker() {
+		return frameTracker_;
+	}
+
+	StartupTracer getStartupTracer() {
+		return startupTracer_;
+	}
+
+	NetworkTracker getNetworkTracker() {
+		return networkTracker_;
+	}
+
+	TraceAggregator getTraceAggregator() {
+		return traceAggregator_;
+	}
+
+	/**
+	 * 返回共享的SSLSocketFactory，相同的证书列表复用同一个SSLContext及其会话缓存，使后续连接可以恢复TLS会话
+	 * Returns the socket factory for the pinned certificates. The factory and its
+	 * SSLContext are shared as long as the certificates don't change, so the client
+	 * session cache lets later connections resume the TLS session instead of doing a
+	 * full handshake, and HttpsURLConnection can reuse pooled connections.
+	 */
+	static synchronized SSLSocketFactory sslSocketFactoryForPinnedCertificates(final List<String> certificates) {
+		if (sharedSslSocketFactory_ == null || !certificates.equals(sharedSslContextCertificates_)) {
 			try {
-				TrustManager tm[] = { new CertificateTrustManager(Statistical.publicKeyPinCertificates) };
-				sslContext_ = SSLContext.getInstance("TLS");
-				sslContext_.init(null, tm, null);
+				TrustManager tm[] = { new CertificateTrustManager(certificates) };
+				final SSLContext sslContext = SSLContext.getInstance("TLS");
+				sslContext.init(null, tm, null);
+				sslContext.getClientSessionContext().setSessionCacheSize(SSL_SESSION_CACHE_SIZE);
+				sslContext.getClientSessionContext().setSessionTimeout(SSL_SESSION_TIMEOUT_IN_SECONDS);
+				sharedSslSocketFactory_ = sslContext.getSocketFactory();
+				sharedSslContextCertificates_ = new ArrayList<String>(certificates);
 			} catch (Throwable e) {
 				throw new IllegalStateException(e);
 			}
 		}
+		return sharedSslSocketFactory_;
+	}
+
+	SSLSocketFactory getSSLSocketFactory() {
+		return sslSocketFactory_;
+	}
+
+	PictureUploader getPictureUploader() {
+		return pictureUploader_;
+	}
+
+	UploadScheduler getUploadScheduler() {
+		return uploadScheduler_;
+	}
+
+	NetworkEstimator getNetworkEstimator() {
+		return networkEstimator_;
+	}
+
+	/**
+	 * 当前网络下每次发送的事件数
+	 */
+	int getEventBatchSize() {
+		return networkEstimator_.getEventBatchSize(uploadScheduler_.getNetworkType());
 	}
 
 	StatisticalStore getCountlyStore() {
@@ -74,6 +235,9 @@ public class ConnectionQueue {
 
 	void setCountlyStore(final StatisticalStore countlyStore) {
 		store_ = countlyStore;
+		endpointSelector_.setStore(countlyStore);
+		trafficMeter_.setStore(countlyStore);
+		metricsFingerprint_.setStore(countlyStore);
 	}
 
 	DeviceId getDeviceId() {
@@ -112,11 +276,35 @@ public class ConnectionQueue {
 	 */
 	void beginSession() {
 		checkInternalState();
-		final String data = "app_key=" + appKey_ + "&begin_session=1" + "&timestamp=" + Statistical.currentTimestamp() + "&sdk_version=" + Statistical.SDK_VERSION_STRING + "&ip_address=" + DeviceInfo.getIp(context_) + "&test_mode=" + (mode_ == Statistical.CountlyMode.TEST ? 2 : 0)
-				+ "&metrics=" + DeviceInfo.getMetrics(context_);
-		store_.addConnection(data);
+		endpointSelector_.newSession();
+		final String data = "app_key=" + appKey_ + "&begin_session=1" + "&timestamp=" + Statistical.currentTimestamp() + "&sdk_version=" + Statistical.SDK_VERSION_STRING + "&test_mode=" + (mode_ == Statistical.CountlyMode.TEST ? 2 : 0);
+		// the metrics need the app version and store, read in the background after init
+		deviceSnapshot_.whenComplete(new Runnable() {
+			@Override
+			public void run() {
+				String request = data;
+				// until the first network refresh the address is unknown, the server then uses the request's
+				final String address = networkState_.get().address;
+				if (address.length() > 0) {
+					request += "&ip_address=" + address;
+				}
+				// only the metrics the server doesn't have yet
+				final String metrics = metricsFingerprint_.metricsToSend(deviceSnapshot_.get().getMetricsJSON(), deviceId_ == null ? null : deviceId_.getId());
+				if (metrics != null) {
+					request += metrics;
+				}
+				final StatisticalStore store = store_;
+				if (store == null) {
+					// halted meanwhile
+					return;
+				}
+				store.addConnection(request, StatisticalStore.Lane.CRITICAL);
+				// repeat counts of crash groups whose window ended since the last session
+				crashGrouper_.flushExpired();
 
-		tick();
+				tick();
+			}
+		});
 	}
 
 	/**
@@ -131,9 +319,13 @@ public class ConnectionQueue {
 	void updateSession(final int duration) {
 		checkInternalState();
 		if (duration > 0) {
-			final String data = "app_key=" + appKey_ + "&timestamp=" + Statistical.currentTimestamp() + "&test_mode=" + (mode_ == Statistical.CountlyMode.TEST ? 2 : 0) + "&session_duration=" + duration;
+			String data = "app_key=" + appKey_ + "&timestamp=" + Statistical.currentTimestamp() + "&test_mode=" + (mode_ == Statistical.CountlyMode.TEST ? 2 : 0) + "&session_duration=" + duration;
+			final String resources = resourceSampler_.drain(false);
+			if (resources != null) {
+				data += "&resources=" + resources;
+			}
 
-			store_.addConnection(data);
+			store_.addConnection(data, StatisticalStore.Lane.BULK);
 
 			tick();
 		}
@@ -143,10 +335,9 @@ public class ConnectionQueue {
 		checkInternalState();
 
 		final String data = "app_key=" + appKey_ + "&" + "timestamp=" + Statistical.currentTimestamp() + "&hour=" + Statistical.currentHour() + "&dow=" + Statistical.currentDayOfWeek() + "&" + "token_session=1" + "&" + "android_token=" + token + "&" + "test_mode="
-				+ (mode == Statistical.CountlyMessagingMode.TEST ? 2 : 0) + "&" + "locale=" + DeviceInfo.getLocale();
+				+ (mode == Statistical.CountlyMessagingMode.TEST ? 2 : 0) + "&" + "locale=" + deviceSnapshot_.get().locale;
 
-		final ScheduledExecutorService worker = Executors.newSingleThreadScheduledExecutor();
-		worker.schedule(new Runnable() {
+		scheduler_.schedule(new Runnable() {
 			@Override
 			public void run() {
 				store_.addConnection(data);
@@ -169,20 +360,38 @@ public class ConnectionQueue {
 		if (duration > 0) {
 			data += "&session_duration=" + duration;
 		}
+		final String resources = resourceSampler_.drain(true);
+		if (resources != null) {
+			data += "&resources=" + resources;
+		}
 
-		store_.addConnection(data);
+		final String request = data;
+		// after a begin_session still waiting for the device metrics
+		deviceSnapshot_.whenComplete(new Runnable() {
+			@Override
+			public void run() {
+				final StatisticalStore store = store_;
+				if (store == null) {
+					// halted meanwhile
+					return;
+				}
+				store.addConnection(request, StatisticalStore.Lane.CRITICAL);
+				trafficMeter_.flush();
 
-		tick();
+				tick();
+			}
+		});
 	}
 
 	/**
-	 * 将用户信息发送到server 
+	 * 将用户信息发送到server，头像由PictureUploader单独上传
 	 * 
 	 * @throws java.lang.IllegalStateException
 	 *             if context, app key, store, or server URL have not been set
 	 */
 	void sendUserData() {
 		checkInternalState();
+		final String picturePath = UserData.isSynced ? null : UserData.picturePath;
 		String userdata = UserData.getDataForRequest();
 
 		if (!userdata.equals("")) {
@@ -191,6 +400,9 @@ public class ConnectionQueue {
 
 			tick();
 		}
+		if (picturePath != null) {
+			pictureUploader_.upload(picturePath);
+		}
 	}
 
 	/**
@@ -206,7 +418,7 @@ public class ConnectionQueue {
 
 		if (referrer != null) {
 			String data = "app_key=" + appKey_ + "&timestamp=" + Statistical.currentTimestamp() + "&test_mode=" + (mode_ == Statistical.CountlyMode.TEST ? 2 : 0) + referrer;
-			store_.addConnection(data);
+			store_.addConnection(data, StatisticalStore.Lane.BULK);
 
 			tick();
 		}
@@ -219,11 +431,50 @@ public class ConnectionQueue {
 	 *             if context, app key, store, or server URL have not been set
 	 */
 	void sendCrashReport(String error, boolean nonfatal) {
+		sendCrashReport(error, nonfatal, 0);
+	}
+
+	/**
+	 * 发送错误报告到server，并报告捕获崩溃所用的时间
+	 * 
+	 * @param captureStartNanos
+	 *            System.nanoTime() when the crash was caught, 0 if unknown
+	 * @throws IllegalStateException
+	 *             if context, app key, store, or server URL have not been set
+	 */
+	void sendCrashReport(String error, boolean nonfatal, long captureStartNanos) {
+		sendCrashReport(error, nonfatal, captureStartNanos, null);
+	}
+
+	/**
+	 * 发送错误报告到server，附带额外的崩溃状态
+	 * 
+	 * @param extras
+	 *            additional crash state, e.g. the duration of a main thread
+	 *            stall, or null
+	 * @throws IllegalStateException
+	 *             if context, app key, store, or server URL have not been set
+	 */
+	void sendCrashReport(String error, boolean nonfatal, long captureStartNanos, Map<String, String> extras) {
 		checkInternalState();
+		// a repeat of a handled crash is only counted, journaled fatal ones are grouped when recovered
+		if (nonfatal && !crashGrouper_.shouldSend(error, true, Statistical.currentTimestamp())) {
+			return;
+		}
 		final String data = "app_key=" + appKey_ + "&timestamp=" + Statistical.currentTimestamp() + "&test_mode=" + (mode_ == Statistical.CountlyMode.TEST ? 2 : 0) + "&hour=" + Statistical.currentHour() + "&dow=" + Statistical.currentDayOfWeek() + "&sdk_version="
-				+ Statistical.SDK_VERSION_STRING + "&crash=" + CrashDetails.getCrashData(context_, error, nonfatal);
+				+ Statistical.SDK_VERSION_STRING + "&crash=" + crashContext_.getCrashData(error, nonfatal, captureStartNanos, extras);
 
-		store_.addConnection(data);
+		// a fatal crash goes to the journal, the process is about to die and the next init queues it
+		if (!nonfatal && crashJournal_.append(data)) {
+			return;
+		}
+		// the journal isn't mapped yet, is full or the report is too large: group it here,
+		// or a crash loop at startup queues the same report on every launch
+		if (!nonfatal && !crashGrouper_.shouldSend(error, false, Statistical.currentTimestamp())) {
+			return;
+		}
+
+		store_.addConnection(data, StatisticalStore.Lane.CRITICAL);
 
 		tick();
 	}
@@ -266,35 +517,28 @@ public class ConnectionQueue {
 		tick();
 	}
 
-	/**
-	 * Ensures that an executor has been created for ConnectionProcessor
-	 * instances to be submitted to.
-	 */
-	void ensureExecutor() {
-		if (executor_ == null) {
-			executor_ = Executors.newSingleThreadExecutor();
-		}
+	StatisticalScheduler getScheduler() {
+		return scheduler_;
+	}
+
+	void setScheduler(final StatisticalScheduler scheduler) {
+		scheduler_ = scheduler;
 	}
 
 	/**
-	 * 发送数据到server 
+	 * 发送数据到server，没有网络时等待UploadScheduler在网络恢复后再次调用
 	 */
-	void tick() {
+	synchronized void tick() {
+		if (store_ == null || !uploadScheduler_.isConnected()) {
+			return;
+		}
 		if (!store_.isEmptyConnections() && (connectionProcessorFuture_ == null || connectionProcessorFuture_.isDone())) {
-			ensureExecutor();
-			connectionProcessorFuture_ = executor_.submit(new ConnectionProcessor(serverURL_, store_, deviceId_, sslContext_));
+			connectionProcessorFuture_ = scheduler_.submitBlocking(new ConnectionProcessor(endpointSelector_, store_, deviceId_, sslSocketFactory_, pictureUploader_, uploadScheduler_, networkEstimator_, trafficMeter_, metricsFingerprint_));
 		}
+		pictureUploader_.tick();
 	}
 
 	// for unit testing
-	ExecutorService getExecutor() {
-		return executor_;
-	}
-
-	void setExecutor(final ExecutorService executor) {
-		executor_ = executor;
-	}
-
 	Future<?> getConnectionProcessorFuture() {
 		return connectionProcessorFuture_;
 	}
@@ -0,0 +1,141 @@
+package com.statistical.android.sdk;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 预先计算的崩溃上下文
+ * Keeps the device part of a crash report (device properties, memory, disk, battery,
+ * connectivity, custom segments) prepared in the background and already URL encoded,
+ * refreshed periodically while a session is in the foreground and once more when it goes
+ * to the background, so an idle app does no work for it. When a crash happens, only the crash itself (stack trace,
+ * logs, running time, background state) is encoded and joined with it, so the crashing
+ * thread doesn't query system services before the report is queued.
+ */
+class CrashContext {
+    /**
+     * 刷新间隔
+     */
+    static final long REFRESH_INTERVAL_IN_SECONDS = 60;
+
+    private final ConnectionQueue connectionQueue_;
+    // URL encoded JSON members of the context, without the enclosing braces
+    private volatile String encodedMembers_;
+    private ScheduledFuture<?> refreshFuture_;
+    private boolean enabled_;
+    private final Runnable refreshTask_ = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    CrashContext(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 开启或关闭崩溃上下文，开启后在会话期间定期刷新
+     */
+    synchronized void setEnabled(final boolean enabled) {
+        enabled_ = enabled;
+    }
+
+    /**
+     * 会话回到前台时开始定期刷新
+     */
+    synchronized void start() {
+        if (!enabled_ || refreshFuture_ != null) {
+            return;
+        }
+        refreshFuture_ = connectionQueue_.getScheduler().scheduleWithFixedDelay(refreshTask_, 0, REFRESH_INTERVAL_IN_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 会话进入后台时停止定期刷新并最后刷新一次，关闭后丢弃上下文
+     */
+    synchronized void stop() {
+        if (refreshFuture_ != null) {
+            refreshFuture_.cancel(false);
+            refreshFuture_ = null;
+        }
+        if (enabled_) {
+            connectionQueue_.getScheduler().submit(refreshTask_);
+        } else {
+            encodedMembers_ = null;
+        }
+    }
+
+    /**
+     * 在后台刷新，例如初始化或自定义崩溃分段变化后
+     * Recomputes the context once in the background if crash reporting is enabled, e.g.
+     * after init or after the custom segments changed.
+     */
+    synchronized void refreshAsync() {
+        if (enabled_) {
+            connectionQueue_.getScheduler().submit(refreshTask_);
+        }
+    }
+
+    private void refresh() {
+        final Context context = connectionQueue_.getContext();
+        if (context == null) {
+            return;
+        }
+        try {
+            encodedMembers_ = encodeMembers(CrashDetails.getCrashContext(context, connectionQueue_.getDeviceSnapshot().get(), connectionQueue_.getNetworkState().get()).toString());
+        } catch (RuntimeException e) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Can't prepare crash context", e);
+            }
+        }
+    }
+
+    /**
+     * 生成崩溃报告
+     * Returns the URL encoded crash report. Uses the prepared context if there is one
+     * and falls back to collecting everything right now otherwise.
+     * @param captureStartNanos System.nanoTime() when the crash was caught, 0 to not
+     *        report how long the capture took
+     * @param extras additional crash state, e.g. the duration of a stall, or null
+     */
+    String getCrashData(final String error, final boolean nonfatal, final long captureStartNanos, final Map<String, String> extras) {
+        final String encodedMembers = encodedMembers_;
+        if (encodedMembers == null) {
+            return CrashDetails.getCrashData(connectionQueue_.getContext(), connectionQueue_.getDeviceSnapshot().get(), connectionQueue_.getNetworkState().get(), error, nonfatal, extras);
+        }
+        final JSONObject state = CrashDetails.getCrashState(error, nonfatal, extras);
+        if (captureStartNanos != 0) {
+            CrashDetails.fillJSONIfValuesNotEmpty(state, "_capture_ms", Long.toString((System.nanoTime() - captureStartNanos) / 1000000));
+        }
+        final String stateMembers = encodeMembers(state.toString());
+        if (encodedMembers.length() == 0) {
+            return encode("{") + stateMembers + encode("}");
+        }
+        return encode("{") + stateMembers + encode(",") + encodedMembers + encode("}");
+    }
+
+    /**
+     * URL encodes the members of a JSON object, i.e. its text without the braces.
+     */
+    private static String encodeMembers(final String json) {
+        return encode(json.substring(1, json.length() - 1));
+    }
+
+    private static String encode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException ignored) {
+            // should never happen because Android guarantees UTF-8 support
+            return value;
+        }
+    }
+}
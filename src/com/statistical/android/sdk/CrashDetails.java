@@ -10,7 +10,6 @@ import android.content.pm.FeatureInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
 import android.media.AudioManager;
-import android.net.ConnectivityManager;
 import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Environment;
@@ -24,8 +23,8 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -35,7 +34,6 @@ import java.util.regex.Pattern;
  *
  */
 class CrashDetails {
-    private static ArrayList<String> logs = new ArrayList<String>();
     private static int startTime = Statistical.currentTimestamp();
     private static Map<String,String> customSegments = null;
     private static boolean inBackground = true;
@@ -99,21 +97,14 @@ class CrashDetails {
      * Adds a record in the log
      */
     static void addLog(String record) {
-        logs.add(record);
+        Breadcrumbs.add(record);
     }
 
     /**
-     * Returns the collected logs.
+     * Returns the logs collected since the last crash report.
      */
     static String getLogs() {
-        StringBuilder allLogs = new StringBuilder();
-
-        for (String s : logs)
-        {
-            allLogs.append(s + "\n");
-        }
-        logs.clear();
-        return allLogs.toString();
+        return Breadcrumbs.snapshot();
     }
 
     /**
@@ -292,28 +283,6 @@ class CrashDetails {
         return "false";
     }
 
-    /**
-     * Checks if device is online.
-     */
-    static String isOnline(Context context) {
-        try {
-            ConnectivityManager conMgr = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
-            if (conMgr != null && conMgr.getActiveNetworkInfo() != null
-                    && conMgr.getActiveNetworkInfo().isAvailable()
-                    && conMgr.getActiveNetworkInfo().isConnected()) {
-
-                return "true";
-            }
-            return "false";
-        }
-        catch(Exception e){
-            if (Statistical.sharedInstance().isLoggingEnabled()) {
-                Log.w(Statistical.TAG, "Got exception determining connectivity", e);
-            }
-        }
-        return null;
-    }
-
     /**
          * Checks if device is muted.
      */
@@ -330,36 +299,31 @@ class CrashDetails {
     }
 
     /**
-     * Returns a URL-encoded JSON string containing the device crash report
-     * See the following link for more info:
-     * http://resources.count.ly/v1.0/docs/i
+     * Returns the part of the crash report that describes the device and its state:
+     * device properties, memory, disk, battery, connectivity and custom segments.
+     * It is the same for every crash at a given moment and can be prepared in advance.
      */
-    static String getCrashData(final Context context, String error, Boolean nonfatal) {
+    static JSONObject getCrashContext(final Context context, final DeviceSnapshot.Values device, final NetworkState.Snapshot network) {
         final JSONObject json = new JSONObject();
 
         fillJSONIfValuesNotEmpty(json,
-                "_error", error,
-                "_nonfatal", Boolean.toString(nonfatal),
-                "_logs", getLogs(),
-                "_device", DeviceInfo.getDevice(),
-                "_os", DeviceInfo.getOS(),
-                "_os_version", DeviceInfo.getOSVersion(),
-                "_resolution", DeviceInfo.getResolution(context),
-                "_app_version", DeviceInfo.getAppVersion(context),
-                "_manufacture", getManufacturer(),
-                "_cpu", getCpu(),
-                "_opengl", getOpenGL(context),
+                "_device", device.device,
+                "_os", device.os,
+                "_os_version", device.osVersion,
+                "_resolution", device.resolution,
+                "_app_version", device.appVersion,
+                "_manufacture", device.manufacturer,
+                "_cpu", device.cpu,
+                "_opengl", device.openGL,
                 "_ram_current", getRamCurrent(context),
-                "_ram_total", getRamTotal(context),
+                "_ram_total", device.ramTotal,
                 "_disk_current", getDiskCurrent(),
-                "_disk_total", getDiskTotal(),
+                "_disk_total", device.diskTotal,
                 "_bat", getBatteryLevel(context),
-                "_run", getRunningTime(),
-                "_orientation", getOrientation(context),
-                "_root", isRooted(),
-                "_online", isOnline(context),
-                "_muted", isMuted(context),
-                "_background", isInBackground()
+                "_orientation", device.orientation,
+                "_root", device.rooted,
+                "_online", Boolean.toString(network.connected),
+                "_muted", isMuted(context)
                 );
 
         try {
@@ -367,6 +331,49 @@ class CrashDetails {
         } catch (JSONException e) {
             //no custom segments
         }
+        return json;
+    }
+
+    /**
+     * Returns the part of the crash report that belongs to this crash: the error,
+     * the logs collected so far, the running time and the background state.
+     * @param extras additional values of this crash, or null
+     */
+    static JSONObject getCrashState(String error, Boolean nonfatal, Map<String, String> extras) {
+        final JSONObject json = new JSONObject();
+
+        fillJSONIfValuesNotEmpty(json,
+                "_error", error,
+                "_nonfatal", Boolean.toString(nonfatal),
+                "_logs", getLogs(),
+                "_run", getRunningTime(),
+                "_background", isInBackground()
+                );
+        if (extras != null) {
+            for (Map.Entry<String, String> extra : extras.entrySet()) {
+                fillJSONIfValuesNotEmpty(json, extra.getKey(), extra.getValue());
+            }
+        }
+        return json;
+    }
+
+    /**
+     * Returns a URL-encoded JSON string containing the device crash report
+     * See the following link for more info:
+     * http://resources.count.ly/v1.0/docs/i
+     */
+    static String getCrashData(final Context context, final DeviceSnapshot.Values device, final NetworkState.Snapshot network, String error, Boolean nonfatal, Map<String, String> extras) {
+        final JSONObject json = getCrashContext(context, device, network);
+        final JSONObject state = getCrashState(error, nonfatal, extras);
+        final Iterator<String> keys = state.keys();
+        try {
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                json.put(key, state.get(key));
+            }
+        } catch (JSONException ignored) {
+            // keys come from the same object
+        }
         String result = json.toString();
 
         try {
@@ -0,0 +1,306 @@
+package com.statistical.android.sdk;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 崩溃分组
+ * Groups crash reports by a normalised stack signature so a crash loop doesn't queue
+ * the same report hundreds of times. The first crash of a signature in a time window is
+ * sent in full; repeats within the window are only counted. When the window is over, the
+ * repeats go out as one "_crash_repeat" event with the signature, the count and the
+ * first and last timestamps. The groups persist in the store and are bounded in number.
+ */
+class CrashGrouper {
+    /**
+     * 默认分组时间窗口
+     */
+    static final long DEFAULT_WINDOW_IN_SECONDS = 60 * 60;
+    static final String REPEAT_EVENT_KEY = "_crash_repeat";
+    static final int MAX_GROUPS = 32;
+    private static final int MAX_FRAMES = 12;
+    private static final String GROUPS_PREFERENCE = "CRASH_GROUPS";
+    private static final String WINDOW_START_KEY = "window_start";
+    private static final String LAST_KEY = "last";
+    private static final String REPEATS_KEY = "repeats";
+    private static final String NONFATAL_KEY = "nonfatal";
+    private static final Pattern LOCATION = Pattern.compile("\\(.*\\)$");
+    private static final Pattern SYNTHETIC_NUMBER = Pattern.compile("\\$[0-9]+|/0x[0-9a-fA-F]+|@[0-9a-fA-F]+");
+
+    /**
+     * One signature in its current window.
+     */
+    private static class Group {
+        long windowStart;
+        long last;
+        int repeats;
+        boolean nonfatal;
+    }
+
+    private final ConnectionQueue connectionQueue_;
+    private final Map<String, Group> groups_ = new HashMap<String, Group>();
+    private boolean loaded_;
+    private volatile long windowInSeconds_ = DEFAULT_WINDOW_IN_SECONDS;
+
+    CrashGrouper(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    void setWindow(final long seconds) {
+        windowInSeconds_ = seconds;
+    }
+
+    /**
+     * 是否发送完整的崩溃报告，重复的崩溃只计数
+     * @param error stack trace as reported
+     * @param nonfatal whether the crash was handled
+     * @param timestamp when the crash happened, in seconds
+     * @return true if the full report should be queued, false if it was folded into its group
+     */
+    synchronized boolean shouldSend(final String error, final boolean nonfatal, final long timestamp) {
+        load();
+        flushExpired(Statistical.currentTimestamp());
+        final String signature = signature(error, nonfatal);
+        Group group = groups_.get(signature);
+        if (group != null && timestamp - group.windowStart < windowInSeconds_) {
+            group.repeats++;
+            group.last = Math.max(group.last, timestamp);
+            save();
+            return false;
+        }
+        if (group != null) {
+            emit(signature, group);
+        } else if (groups_.size() >= MAX_GROUPS) {
+            evictOldest();
+        }
+        group = new Group();
+        group.windowStart = timestamp;
+        group.last = timestamp;
+        group.nonfatal = nonfatal;
+        groups_.put(signature, group);
+        save();
+        return true;
+    }
+
+    /**
+     * 对已写好的崩溃请求分组，用于从崩溃日志恢复的报告
+     * Same as shouldSend for a queued crash request, e.g. one recovered from the journal.
+     * Requests that can't be parsed are always sent.
+     */
+    boolean shouldSendRequest(final String request) {
+        final String crash = parameter(request, "crash");
+        if (crash == null) {
+            return true;
+        }
+        try {
+            final JSONObject json = new JSONObject(URLDecoder.decode(crash, "UTF-8"));
+            final String timestamp = parameter(request, "timestamp");
+            return shouldSend(json.optString("_error", ""), json.optBoolean("_nonfatal", false),
+                    timestamp == null ? Statistical.currentTimestamp() : Long.parseLong(timestamp));
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    /**
+     * 发送时间窗口已结束的重复计数
+     * Sends the repeat counts of groups whose window is over and forgets those groups.
+     */
+    synchronized void flushExpired() {
+        load();
+        if (flushExpired(Statistical.currentTimestamp())) {
+            save();
+        }
+    }
+
+    private boolean flushExpired(final long now) {
+        boolean changed = false;
+        final Iterator<Map.Entry<String, Group>> iterator = groups_.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Group> entry = iterator.next();
+            if (now - entry.getValue().windowStart >= windowInSeconds_) {
+                emit(entry.getKey(), entry.getValue());
+                iterator.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void evictOldest() {
+        String oldest = null;
+        for (Map.Entry<String, Group> entry : groups_.entrySet()) {
+            if (oldest == null || entry.getValue().last < groups_.get(oldest).last) {
+                oldest = entry.getKey();
+            }
+        }
+        if (oldest != null) {
+            emit(oldest, groups_.remove(oldest));
+        }
+    }
+
+    /**
+     * Queues the repeat count of a group as an event, if there were repeats.
+     */
+    private void emit(final String signature, final Group group) {
+        if (group.repeats == 0) {
+            return;
+        }
+        final Event event = new Event();
+        event.key = REPEAT_EVENT_KEY;
+        event.count = group.repeats;
+        event.timestamp = (int) group.last;
+        event.segmentation = new HashMap<String, String>();
+        event.segmentation.put("signature", signature);
+        event.segmentation.put("first", Long.toString(group.windowStart));
+        event.segmentation.put("last", Long.toString(group.last));
+        event.segmentation.put("nonfatal", Boolean.toString(group.nonfatal));
+        try {
+            connectionQueue_.recordEvents(URLEncoder.encode(new JSONArray().put(event.toJSON()).toString(), "UTF-8"));
+        } catch (UnsupportedEncodingException ignored) {
+            // should never happen because Android guarantees UTF-8 support
+        } catch (IllegalStateException e) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Can't queue crash repeat count", e);
+            }
+        }
+    }
+
+    /**
+     * 标准化的堆栈签名
+     * Hash of the exception classes and the top frames of the stack trace, without
+     * messages, line numbers, synthetic class numbers and addresses, so the same crash
+     * has the same signature across builds of one version and across occurrences.
+     */
+    static String signature(final String stackTrace, final boolean nonfatal) {
+        final StringBuilder normalised = new StringBuilder(nonfatal ? "nonfatal" : "fatal");
+        int frames = 0;
+        boolean first = true;
+        for (String line : stackTrace.split("\n")) {
+            line = line.trim();
+            if (line.length() == 0) {
+                continue;
+            }
+            if (first) {
+                normalised.append('\n').append(exceptionClass(line));
+                first = false;
+            } else if (line.startsWith("at ")) {
+                if (frames++ < MAX_FRAMES) {
+                    final String frame = LOCATION.matcher(line.substring(3)).replaceFirst("");
+                    normalised.append('\n').append(SYNTHETIC_NUMBER.matcher(frame).replaceAll("\\$"));
+                }
+            } else if (line.startsWith("Caused by: ")) {
+                normalised.append("\ncaused by ").append(exceptionClass(line.substring("Caused by: ".length())));
+                frames = 0;
+            }
+        }
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(normalised.toString().getBytes("UTF-8"));
+            final StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i] & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(normalised.toString().hashCode());
+        } catch (UnsupportedEncodingException e) {
+            return Integer.toHexString(normalised.toString().hashCode());
+        }
+    }
+
+    private static String exceptionClass(final String line) {
+        final int colon = line.indexOf(':');
+        return colon < 0 ? line : line.substring(0, colon);
+    }
+
+    private static String parameter(final String request, final String name) {
+        final String query = "&" + request;
+        final String prefix = "&" + name + "=";
+        final int found = query.indexOf(prefix);
+        if (found < 0) {
+            return null;
+        }
+        final int start = found + prefix.length();
+        final int end = query.indexOf('&', start);
+        return end < 0 ? query.substring(start) : query.substring(start, end);
+    }
+
+    /**
+     * 忘记所有崩溃分组，用于halt
+     */
+    synchronized void clear() {
+        groups_.clear();
+        loaded_ = false;
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store != null) {
+            store.setPreference(GROUPS_PREFERENCE, null);
+        }
+    }
+
+    private void load() {
+        if (loaded_) {
+            return;
+        }
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store == null) {
+            return;
+        }
+        loaded_ = true;
+        final String stored = store.getPreference(GROUPS_PREFERENCE);
+        if (stored == null) {
+            return;
+        }
+        try {
+            final JSONObject json = new JSONObject(stored);
+            final Iterator<String> signatures = json.keys();
+            while (signatures.hasNext()) {
+                final String signature = signatures.next();
+                final JSONObject stats = json.getJSONObject(signature);
+                final Group group = new Group();
+                group.windowStart = stats.optLong(WINDOW_START_KEY);
+                group.last = stats.optLong(LAST_KEY);
+                group.repeats = stats.optInt(REPEATS_KEY);
+                group.nonfatal = stats.optBoolean(NONFATAL_KEY, false);
+                groups_.put(signature, group);
+            }
+        } catch (JSONException e) {
+            store.setPreference(GROUPS_PREFERENCE, null);
+        }
+    }
+
+    private void save() {
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store == null) {
+            return;
+        }
+        try {
+            final JSONObject json = new JSONObject();
+            for (Map.Entry<String, Group> entry : groups_.entrySet()) {
+                final JSONObject stats = new JSONObject();
+                stats.put(WINDOW_START_KEY, entry.getValue().windowStart);
+                stats.put(LAST_KEY, entry.getValue().last);
+                stats.put(REPEATS_KEY, entry.getValue().repeats);
+                stats.put(NONFATAL_KEY, entry.getValue().nonfatal);
+                json.put(entry.getKey(), stats);
+            }
+            store.setPreference(GROUPS_PREFERENCE, groups_.isEmpty() ? null : json.toString());
+        } catch (JSONException e) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Can't save crash groups", e);
+            }
+        }
+    }
+}
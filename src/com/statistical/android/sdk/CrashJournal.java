@@ -0,0 +1,177 @@
+package com.statistical.android.sdk;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 崩溃日志
+ * A pre-allocated, memory-mapped file the uncaught exception handler writes fatal crash
+ * reports into, instead of rewriting the connection queue in SharedPreferences from a
+ * dying process. The file holds a fixed number of slots. A slot is marked as being
+ * written, filled with the request and then marked as committed, using absolute puts
+ * into the mapped buffer without any allocation. Pages of a mapping survive the death of
+ * the process, and a slot that was not committed is discarded. On the next init the
+ * committed slots are moved into the critical lane of the connection queue.
+ */
+class CrashJournal {
+    static final String FILE_NAME = "statistical_crash.journal";
+    static final int SLOT_COUNT = 4;
+    static final int SLOT_SIZE = 64 * 1024;
+    // slot header: state, payload length
+    static final int HEADER_SIZE = 8;
+    static final int EMPTY = 0;
+    static final int WRITING = 0x57524954;
+    static final int COMMITTED = 0x434f4d54;
+
+    private final ConnectionQueue connectionQueue_;
+    private MappedByteBuffer buffer_;
+
+    CrashJournal(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 在后台打开日志文件并恢复上次进程的崩溃报告
+     * Maps the journal in the background and moves crash reports written by a previous
+     * process into the connection queue. Crashes before the journal is open go to the
+     * connection queue directly.
+     */
+    void open(final Context context) {
+        final File file = new File(context.getFilesDir(), FILE_NAME);
+        connectionQueue_.getScheduler().submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    map(file);
+                    final int recovered = recover(connectionQueue_.getCountlyStore());
+                    if (recovered > 0) {
+                        if (Statistical.sharedInstance().isLoggingEnabled()) {
+                            Log.i(Statistical.TAG, "Recovered " + recovered + " crash reports from the journal");
+                        }
+                        connectionQueue_.tick();
+                    }
+                } catch (IOException e) {
+                    if (Statistical.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Statistical.TAG, "Can't open crash journal, crashes go to the connection queue", e);
+                    }
+                }
+            }
+        });
+    }
+
+    // package-private for unit testing
+    synchronized void map(final File file) throws IOException {
+        if (buffer_ != null) {
+            return;
+        }
+        final long size = (long) SLOT_COUNT * SLOT_SIZE;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() != size) {
+                // write every block now so a full disk can't fault the crash handler later
+                raf.setLength(0);
+                raf.write(new byte[(int) size]);
+            }
+            buffer_ = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * 将已提交的崩溃报告移入连接队列
+     * @return number of crash reports moved into the connection queue
+     */
+    synchronized int recover(final StatisticalStore store) {
+        if (buffer_ == null || store == null) {
+            return 0;
+        }
+        int recovered = 0;
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            final int offset = slot * SLOT_SIZE;
+            final int state = buffer_.getInt(offset);
+            if (state == COMMITTED) {
+                final int length = buffer_.getInt(offset + 4);
+                if (length > 0 && length <= SLOT_SIZE - HEADER_SIZE) {
+                    final char[] chars = new char[length];
+                    for (int i = 0; i < length; i++) {
+                        chars[i] = (char) buffer_.get(offset + HEADER_SIZE + i);
+                    }
+                    final String request = new String(chars);
+                    // a crash loop leaves the same crash in every slot, only the first of a group is sent
+                    if (connectionQueue_.getCrashGrouper().shouldSendRequest(request)) {
+                        store.addConnection(request, StatisticalStore.Lane.CRITICAL);
+                        recovered++;
+                    }
+                }
+            } else if (state != EMPTY && Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Discarding incomplete crash report from the journal");
+            }
+            if (state != EMPTY) {
+                buffer_.putInt(offset, EMPTY);
+            }
+        }
+        buffer_.force();
+        return recovered;
+    }
+
+    /**
+     * 丢弃日志中的崩溃报告，用于halt
+     * Empties every slot of the mapped journal, or deletes the file if it isn't mapped yet.
+     */
+    synchronized void clear(final Context context) {
+        if (buffer_ == null) {
+            if (context != null) {
+                new File(context.getFilesDir(), FILE_NAME).delete();
+            }
+            return;
+        }
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            buffer_.putInt(slot * SLOT_SIZE, EMPTY);
+        }
+        buffer_.force();
+    }
+
+    /**
+     * 写入一个崩溃报告，不分配内存
+     * Writes a request into a free slot without allocating.
+     * @param request the request as it would be queued; must be ASCII, as URL encoded data is
+     * @return false if the journal is not open, full, or the request doesn't fit, in which
+     *         case the caller has to queue the request itself
+     */
+    synchronized boolean append(final String request) {
+        if (buffer_ == null) {
+            return false;
+        }
+        final int length = request.length();
+        if (length == 0 || length > SLOT_SIZE - HEADER_SIZE) {
+            return false;
+        }
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            final int offset = slot * SLOT_SIZE;
+            if (buffer_.getInt(offset) != EMPTY) {
+                continue;
+            }
+            buffer_.putInt(offset, WRITING);
+            buffer_.putInt(offset + 4, length);
+            for (int i = 0; i < length; i++) {
+                final char c = request.charAt(i);
+                if (c > 0x7f) {
+                    buffer_.putInt(offset, EMPTY);
+                    return false;
+                }
+                buffer_.put(offset + HEADER_SIZE + i, (byte) c);
+            }
+            buffer_.putInt(offset, COMMITTED);
+            return true;
+        }
+        return false;
+    }
+}
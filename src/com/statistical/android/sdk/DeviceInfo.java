@@ -229,18 +229,25 @@ class DeviceInfo {
         } catch (JSONException ignored) {
         }
     }
+    /**
+     * 当前网络上的IP地址，不会改变Wi-Fi状态
+     * @return the device's address on the active network, empty if unknown, null if
+     *         the network interfaces can't be read
+     */
     public static String getIp(Context context) {
+        return getIp(context, getNetWorkType(context));
+    }
+
+    static String getIp(final Context context, final String networkType) {
 		String ip = "";
-		if (getNetWorkType(context).equals("wifi")) {
+		if (networkType.equals("wifi")) {
 			WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
-			// 判断wifi是否开启
-			if (!wifiManager.isWifiEnabled()) {
-				wifiManager.setWifiEnabled(true);
+			// 只读取当前连接，不开启Wi-Fi
+			WifiInfo wifiInfo = wifiManager == null ? null : wifiManager.getConnectionInfo();
+			if (wifiInfo != null && wifiInfo.getIpAddress() != 0) {
+				ip = intToIp(wifiInfo.getIpAddress());
 			}
-			WifiInfo wifiInfo = wifiManager.getConnectionInfo();
-			int ipAddress = wifiInfo.getIpAddress();
-			ip = intToIp(ipAddress);
-		} else if (getNetWorkType(context).equals("mobile")) {
+		} else if (networkType.equals("mobile")) {
 			try {
 				for (Enumeration<NetworkInterface> en = NetworkInterface.getNetworkInterfaces(); en.hasMoreElements();) {
 					NetworkInterface intf = en.nextElement();
@@ -261,19 +268,17 @@ class DeviceInfo {
     
     public static String getNetWorkType(Context context) {
 		ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+		return getNetWorkType(cm == null ? null : cm.getActiveNetworkInfo());
+	}
 
-		if (cm != null) {
-			NetworkInfo info = cm.getActiveNetworkInfo();
-			if (info != null) {
-				int networkInfoType = info.getType();
-				if (networkInfoType == ConnectivityManager.TYPE_WIFI || networkInfoType == ConnectivityManager.TYPE_ETHERNET) {
-					return "wifi";
-				} else if (networkInfoType == ConnectivityManager.TYPE_MOBILE) {
-					return "mobile";
-				}
-
+    static String getNetWorkType(final NetworkInfo info) {
+		if (info != null) {
+			int networkInfoType = info.getType();
+			if (networkInfoType == ConnectivityManager.TYPE_WIFI || networkInfoType == ConnectivityManager.TYPE_ETHERNET) {
+				return "wifi";
+			} else if (networkInfoType == ConnectivityManager.TYPE_MOBILE) {
+				return "mobile";
 			}
-
 		}
 		return "wifi";
 	}
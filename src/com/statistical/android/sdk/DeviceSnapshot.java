@@ -0,0 +1,250 @@
+package com.statistical.android.sdk;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.SystemClock;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+/**
+ * 设备信息快照
+ * Device information computed once instead of on every request. Values that can't change
+ * while the process runs are read once, in the background right after init. Values that
+ * depend on the configuration or the network are refreshed when the configuration
+ * changes (locale, orientation, display) and when they are older than the TTL. Readers
+ * get the latest immutable snapshot without locking. The costly values (OpenGL, root
+ * check, RAM and disk totals, package manager lookups) are only ever read in the
+ * background; before they are ready, readers get a snapshot without them.
+ */
+class DeviceSnapshot {
+    /**
+     * 易变信息的有效期
+     * Age after which the configuration and network dependent values are refreshed.
+     */
+    static final long VOLATILE_TTL_IN_MILLISECONDS = 30 * 60 * 1000;
+
+    /**
+     * 一次快照的值
+     */
+    static final class Values {
+        // can't change while the process runs
+        final String device;
+        final String os;
+        final String osVersion;
+        final String manufacturer;
+        final String cpu;
+        final String openGL;
+        final String appVersion;
+        final String store;
+        final String ramTotal;
+        final String diskTotal;
+        final String rooted;
+        // refreshed on configuration changes and after the TTL
+        final String carrier;
+        final String resolution;
+        final String density;
+        final String locale;
+        final String orientation;
+        final long refreshedAt;
+        // whether the costly values that can't change were read
+        final boolean complete;
+
+        /**
+         * @param readCostly whether to read the costly values if previous doesn't have
+         *                   them, only on a background thread
+         */
+        private Values(final Context context, final Values previous, final boolean readCostly) {
+            if (previous == null || !previous.complete) {
+                // read from Build, cheap
+                device = DeviceInfo.getDevice();
+                os = DeviceInfo.getOS();
+                osVersion = DeviceInfo.getOSVersion();
+                manufacturer = CrashDetails.getManufacturer();
+                cpu = CrashDetails.getCpu();
+                if (readCostly) {
+                    openGL = CrashDetails.getOpenGL(context);
+                    appVersion = DeviceInfo.getAppVersion(context);
+                    store = DeviceInfo.getStore(context);
+                    ramTotal = CrashDetails.getRamTotal(context);
+                    diskTotal = CrashDetails.getDiskTotal();
+                    rooted = CrashDetails.isRooted();
+                } else {
+                    openGL = null;
+                    appVersion = null;
+                    store = null;
+                    ramTotal = null;
+                    diskTotal = null;
+                    rooted = null;
+                }
+                complete = readCostly;
+            } else {
+                device = previous.device;
+                os = previous.os;
+                osVersion = previous.osVersion;
+                manufacturer = previous.manufacturer;
+                cpu = previous.cpu;
+                openGL = previous.openGL;
+                appVersion = previous.appVersion;
+                store = previous.store;
+                ramTotal = previous.ramTotal;
+                diskTotal = previous.diskTotal;
+                rooted = previous.rooted;
+                complete = true;
+            }
+            carrier = DeviceInfo.getCarrier(context);
+            resolution = DeviceInfo.getResolution(context);
+            density = DeviceInfo.getDensity(context);
+            locale = DeviceInfo.getLocale();
+            orientation = CrashDetails.getOrientation(context);
+            refreshedAt = SystemClock.elapsedRealtime();
+        }
+
+        /**
+         * 会话开始时发送的设备指标
+         * @return metrics JSON for begin_session, without empty values
+         */
+        JSONObject getMetricsJSON() {
+            final JSONObject json = new JSONObject();
+            DeviceInfo.fillJSONIfValuesNotEmpty(json,
+                    "_device", device,
+                    "_os", os,
+                    "_os_version", osVersion,
+                    "_carrier", carrier,
+                    "_resolution", resolution,
+                    "_density", density,
+                    "_locale", locale,
+                    "_app_version", appVersion,
+                    "_store", store);
+            return json;
+        }
+    }
+
+    private final ConnectionQueue connectionQueue_;
+    private volatile Values values_;
+    private Context context_;
+    private ComponentCallbacks callbacks_;
+    private Future<?> refreshFuture_;
+    // run once the costly values are read, in the order they were added
+    private final List<Runnable> whenComplete_ = new ArrayList<Runnable>();
+    // the background thread is running tasks from whenComplete_
+    private boolean runningTasks_;
+
+    DeviceSnapshot(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 在后台计算快照并监听配置变化
+     * Computes the snapshot in the background and starts listening for configuration
+     * changes. Calling it again with another context re-registers the listener.
+     */
+    synchronized void start(final Context context) {
+        stop();
+        context_ = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        callbacks_ = new ComponentCallbacks() {
+            @Override
+            public void onConfigurationChanged(final Configuration newConfig) {
+                refreshAsync();
+            }
+
+            @Override
+            public void onLowMemory() {
+            }
+        };
+        context_.registerComponentCallbacks(callbacks_);
+        refreshAsync();
+    }
+
+    /**
+     * 停止监听配置变化
+     */
+    synchronized void stop() {
+        if (context_ != null && callbacks_ != null) {
+            context_.unregisterComponentCallbacks(callbacks_);
+        }
+        callbacks_ = null;
+        context_ = null;
+        // tasks built for this init must not run after the next one
+        whenComplete_.clear();
+    }
+
+    /**
+     * 返回当前快照
+     * Returns the current snapshot. If it is older than the TTL, it is still returned
+     * and a refresh starts in the background. A caller that comes before the first
+     * snapshot is ready gets one with only the cheap values; the costly ones are never
+     * read on the caller's thread.
+     */
+    Values get() {
+        Values values = values_;
+        if (values == null) {
+            synchronized (this) {
+                values = values_;
+                if (values == null) {
+                    final Context context = context_ != null ? context_ : connectionQueue_.getContext();
+                    values = new Values(context, null, false);
+                    values_ = values;
+                }
+            }
+            refreshAsync();
+        } else if (!values.complete || SystemClock.elapsedRealtime() - values.refreshedAt > VOLATILE_TTL_IN_MILLISECONDS) {
+            refreshAsync();
+        }
+        return values;
+    }
+
+    /**
+     * 快照完整后执行
+     * Runs the task once the snapshot has all values: right away on this thread if it
+     * has them and no earlier task is waiting, otherwise on the background thread that
+     * reads them. Tasks run in the order they were added.
+     */
+    void whenComplete(final Runnable task) {
+        synchronized (this) {
+            final Values values = values_;
+            if (values == null || !values.complete || runningTasks_ || !whenComplete_.isEmpty()) {
+                whenComplete_.add(task);
+                refreshAsync();
+                return;
+            }
+        }
+        task.run();
+    }
+
+    private synchronized void refreshAsync() {
+        if (context_ == null || connectionQueue_.getScheduler() == null || (refreshFuture_ != null && !refreshFuture_.isDone())) {
+            return;
+        }
+        final Context context = context_;
+        refreshFuture_ = connectionQueue_.getScheduler().submit(new Runnable() {
+            @Override
+            public void run() {
+                final Values values = new Values(context, values_, true);
+                synchronized (DeviceSnapshot.this) {
+                    values_ = values;
+                    if (runningTasks_) {
+                        return;
+                    }
+                    runningTasks_ = true;
+                }
+                // one at a time, so tasks added meanwhile run after the earlier ones
+                while (true) {
+                    final Runnable task;
+                    synchronized (DeviceSnapshot.this) {
+                        if (whenComplete_.isEmpty()) {
+                            runningTasks_ = false;
+                            return;
+                        }
+                        task = whenComplete_.remove(0);
+                    }
+                    task.run();
+                }
+            }
+        });
+    }
+}
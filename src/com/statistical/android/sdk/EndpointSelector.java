@@ -0,0 +1,282 @@
+package com.statistical.android.sdk;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 服务器地址选择
+ * Chooses which of the configured ingestion endpoints requests go to. It tracks latency
+ * and failures per endpoint, sends to the fastest healthy one and fails over when the
+ * current one fails or gets slow. A failed endpoint cools down before it is tried
+ * again. The choice is sticky for a session, and the statistics persist in the store so
+ * the choice is warm at the next start.
+ */
+class EndpointSelector {
+    private static final String ENDPOINTS_PREFERENCE = "ENDPOINTS";
+    private static final String LATENCY_KEY = "latency";
+    private static final String FAILURES_KEY = "failures";
+    private static final String COOLDOWN_KEY = "cooldown_until";
+    private static final double LATENCY_SMOOTHING = 0.3d;
+    /**
+     * 未测量过的服务器的假定延迟
+     * Latency assumed for endpoints that were never measured.
+     */
+    static final long UNKNOWN_LATENCY_IN_MILLISECONDS = 1000;
+    /**
+     * 超过该延迟时，如果有明显更快的服务器则切换
+     * Average latency above which the current endpoint is replaced by a clearly faster one.
+     */
+    static final long SLOW_LATENCY_IN_MILLISECONDS = 3000;
+    private static final long BASE_COOLDOWN_IN_MILLISECONDS = 30 * 1000;
+    private static final long MAX_COOLDOWN_IN_MILLISECONDS = 10 * 60 * 1000;
+    /**
+     * 成功请求更新的延迟最多每分钟保存一次
+     * Latencies learned from successful requests are saved at most this often.
+     */
+    static final long SAVE_INTERVAL_IN_MILLISECONDS = 60 * 1000;
+
+    /**
+     * Health and latency of one endpoint.
+     */
+    private static class Endpoint {
+        final String url;
+        double latency;
+        int failures;
+        long cooldownUntil;
+
+        Endpoint(final String url) {
+            this.url = url;
+        }
+
+        long score() {
+            return latency > 0 ? (long) latency : UNKNOWN_LATENCY_IN_MILLISECONDS;
+        }
+    }
+
+    private final List<Endpoint> endpoints_ = new ArrayList<Endpoint>();
+    private StatisticalStore store_;
+    private Endpoint current_;
+    private long savedAt_;
+
+    /**
+     * 设置服务器列表，第一个为主服务器
+     * @param urls endpoints, the first one is preferred while nothing is measured; null or empty clears them
+     */
+    synchronized void setEndpoints(final List<String> urls) {
+        final Map<String, Endpoint> previous = new HashMap<String, Endpoint>();
+        for (Endpoint endpoint : endpoints_) {
+            previous.put(endpoint.url, endpoint);
+        }
+        endpoints_.clear();
+        final List<Endpoint> added = new ArrayList<Endpoint>();
+        if (urls != null) {
+            for (String url : urls) {
+                if (url != null && !contains(url)) {
+                    Endpoint endpoint = previous.get(url);
+                    if (endpoint == null) {
+                        endpoint = new Endpoint(url);
+                        added.add(endpoint);
+                    }
+                    endpoints_.add(endpoint);
+                }
+            }
+        }
+        load(added);
+        current_ = null;
+    }
+
+    /**
+     * 设置持久化统计数据的存储，并读取上次保存的数据
+     */
+    synchronized void setStore(final StatisticalStore store) {
+        store_ = store;
+        load(endpoints_);
+        current_ = null;
+    }
+
+    /**
+     * 忘记所有服务器的统计数据，用于halt
+     */
+    synchronized void clear() {
+        for (Endpoint endpoint : endpoints_) {
+            endpoint.latency = 0;
+            endpoint.failures = 0;
+            endpoint.cooldownUntil = 0;
+        }
+        current_ = null;
+        if (store_ != null) {
+            store_.setPreference(ENDPOINTS_PREFERENCE, null);
+        }
+    }
+
+    /**
+     * 新会话开始时重新选择服务器
+     * Re-evaluates the choice at the start of a session and persists the statistics.
+     */
+    synchronized void newSession() {
+        current_ = best();
+        save();
+    }
+
+    /**
+     * 当前会话使用的服务器
+     * @return the endpoint to send to, or null if none is configured
+     */
+    synchronized String current() {
+        if (current_ == null || !endpoints_.contains(current_)) {
+            current_ = best();
+        }
+        return current_ == null ? null : current_.url;
+    }
+
+    /**
+     * 请求成功时调用
+     * Records a successful request. Switches away from the endpoint if it has become slow
+     * and another healthy one is at least twice as fast.
+     */
+    synchronized void onSuccess(final String url, final long latencyMillis) {
+        final Endpoint endpoint = find(url);
+        if (endpoint == null) {
+            return;
+        }
+        endpoint.latency = endpoint.latency == 0
+                ? latencyMillis
+                : endpoint.latency + LATENCY_SMOOTHING * (latencyMillis - endpoint.latency);
+        endpoint.failures = 0;
+        endpoint.cooldownUntil = 0;
+        if (endpoint == current_ && endpoint.latency > SLOW_LATENCY_IN_MILLISECONDS) {
+            final Endpoint best = best();
+            if (best != endpoint && best.score() * 2 < endpoint.score()) {
+                switchTo(best, "slow");
+            }
+        }
+        if (SystemClock.elapsedRealtime() - savedAt_ >= SAVE_INTERVAL_IN_MILLISECONDS) {
+            save();
+        }
+    }
+
+    /**
+     * 请求失败时调用，服务器进入冷却期并切换到下一个服务器
+     * Records a failed request. The endpoint cools down for a period that doubles with
+     * every consecutive failure, and the session moves to the best remaining endpoint.
+     */
+    synchronized void onFailure(final String url) {
+        final Endpoint endpoint = find(url);
+        if (endpoint == null) {
+            return;
+        }
+        endpoint.failures++;
+        final long cooldown = BASE_COOLDOWN_IN_MILLISECONDS << Math.min(endpoint.failures - 1, 10);
+        endpoint.cooldownUntil = System.currentTimeMillis() + Math.min(cooldown, MAX_COOLDOWN_IN_MILLISECONDS);
+        if (endpoint == current_) {
+            final Endpoint best = best();
+            if (best != endpoint) {
+                switchTo(best, "failing");
+            }
+        }
+        save();
+    }
+
+    /**
+     * The healthy endpoint with the lowest latency, list order breaking ties. If every
+     * endpoint is cooling down, the one that recovers first.
+     */
+    private Endpoint best() {
+        final long now = System.currentTimeMillis();
+        Endpoint best = null;
+        Endpoint recoversFirst = null;
+        for (Endpoint endpoint : endpoints_) {
+            if (endpoint.cooldownUntil > now) {
+                if (recoversFirst == null || endpoint.cooldownUntil < recoversFirst.cooldownUntil) {
+                    recoversFirst = endpoint;
+                }
+            } else if (best == null || endpoint.score() < best.score()) {
+                best = endpoint;
+            }
+        }
+        return best != null ? best : recoversFirst;
+    }
+
+    private void switchTo(final Endpoint endpoint, final String reason) {
+        if (Statistical.sharedInstance().isLoggingEnabled()) {
+            Log.i(Statistical.TAG, "Switching from " + current_.url + " (" + reason + ") to " + endpoint.url);
+        }
+        current_ = endpoint;
+    }
+
+    private boolean contains(final String url) {
+        return find(url) != null;
+    }
+
+    private Endpoint find(final String url) {
+        for (Endpoint endpoint : endpoints_) {
+            if (endpoint.url.equals(url)) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private void load(final List<Endpoint> endpoints) {
+        if (store_ == null || endpoints.isEmpty()) {
+            return;
+        }
+        final String stored = store_.getPreference(ENDPOINTS_PREFERENCE);
+        if (stored == null) {
+            return;
+        }
+        try {
+            final JSONObject json = new JSONObject(stored);
+            for (Endpoint endpoint : endpoints) {
+                final JSONObject stats = json.optJSONObject(endpoint.url);
+                if (stats != null) {
+                    endpoint.latency = stats.optDouble(LATENCY_KEY, 0);
+                    endpoint.failures = stats.optInt(FAILURES_KEY, 0);
+                    endpoint.cooldownUntil = stats.optLong(COOLDOWN_KEY, 0);
+                }
+            }
+        } catch (JSONException e) {
+            store_.setPreference(ENDPOINTS_PREFERENCE, null);
+        }
+    }
+
+    private void save() {
+        if (store_ == null) {
+            return;
+        }
+        savedAt_ = SystemClock.elapsedRealtime();
+        try {
+            final JSONObject json = new JSONObject();
+            for (Endpoint endpoint : endpoints_) {
+                final JSONObject stats = new JSONObject();
+                stats.put(LATENCY_KEY, endpoint.latency);
+                stats.put(FAILURES_KEY, endpoint.failures);
+                stats.put(COOLDOWN_KEY, endpoint.cooldownUntil);
+                json.put(endpoint.url, stats);
+            }
+            store_.setPreference(ENDPOINTS_PREFERENCE, json.toString());
+        } catch (JSONException e) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Can't save endpoint statistics", e);
+            }
+        }
+    }
+
+    // for unit testing
+    synchronized List<String> getEndpoints() {
+        final List<String> urls = new ArrayList<String>();
+        for (Endpoint endpoint : endpoints_) {
+            urls.add(endpoint.url);
+        }
+        return Collections.unmodifiableList(urls);
+    }
+}
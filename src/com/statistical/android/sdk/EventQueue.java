@@ -72,6 +72,14 @@ public class EventQueue {
         countlyStore_.addEvent(key, segmentation, timestamp, hour, dow, count, sum);
     }
 
+    /**
+     * 一次储存多个事件到本地事件队列
+     * @param events events with their timestamps already set
+     */
+    void recordEvents(final List<Event> events) {
+        countlyStore_.addEvents(events);
+    }
+
     StatisticalStore getCountlyStore() {
         return countlyStore_;
     }
@@ -0,0 +1,189 @@
+package com.statistical.android.sdk;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 帧率与卡顿统计
+ * Measures frame times with Choreographer frame callbacks, as the time between
+ * consecutive vsync timestamps, and aggregates them per open view into a histogram and
+ * counters of slow frames (that missed at least one vsync) and frozen frames (longer
+ * than FROZEN_FRAME_MILLIS). A frame counts toward the view that is current when it is
+ * drawn, so a view that is still open while the next one starts, as an activity is
+ * while the one it opened starts, keeps what it measured. When a view ends, its
+ * aggregates go into the segmentation of its duration event. Callbacks only run while
+ * a view is current and the session is in the foreground; a frame allocates nothing.
+ * Needs Android 4.1, older versions report no frame metrics.
+ */
+class FrameTracker {
+    /**
+     * 慢帧阈值，超过一个垂直同步周期
+     */
+    static final long SLOW_FRAME_MILLIS = 24;
+    /**
+     * 冻结帧阈值
+     */
+    static final long FROZEN_FRAME_MILLIS = 700;
+
+    private static final class ViewFrames {
+        final Histogram frames = new Histogram();
+        long slowFrames;
+        long frozenFrames;
+    }
+
+    // open views in start order, bounded like the views ViewTracker keeps open
+    private final Map<String, ViewFrames> views_ = new LinkedHashMap<String, ViewFrames>();
+    // the view frames are counted toward, null if the current view has ended
+    private ViewFrames current_;
+    private long lastFrameNanos_;
+    private boolean enabled_;
+    private boolean running_;
+    // a frame callback is posted and hasn't run yet
+    private boolean callbackPending_;
+    private Handler mainHandler_;
+    private Runnable postCallback_;
+
+    /**
+     * 开启或关闭帧统计
+     */
+    synchronized void setEnabled(final boolean enabled) {
+        enabled_ = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+        if (!enabled_) {
+            running_ = false;
+        } else if (current_ != null && !running_) {
+            startCallbacks();
+        }
+    }
+
+    /**
+     * 视图开始，之后的帧计入该视图
+     */
+    synchronized void viewStarted(final String viewName) {
+        if (views_.remove(viewName) == null && views_.size() >= ViewTracker.MAX_OPEN_VIEWS) {
+            // the oldest view was never ended
+            views_.remove(views_.keySet().iterator().next());
+        }
+        current_ = new ViewFrames();
+        views_.put(viewName, current_);
+        if (enabled_ && !running_) {
+            startCallbacks();
+        }
+    }
+
+    /**
+     * 视图结束
+     * @return segmentation for the view's duration event, or null if the view isn't open
+     *         or no frames were measured for it
+     */
+    synchronized Map<String, String> viewEnded(final String viewName) {
+        final ViewFrames view = views_.remove(viewName);
+        if (view == null) {
+            return null;
+        }
+        if (view == current_) {
+            current_ = null;
+            running_ = false;
+        }
+        final Histogram frames = view.frames;
+        if (frames.getCount() == 0) {
+            return null;
+        }
+        final Map<String, String> segments = new HashMap<String, String>();
+        segments.put("frames", Long.toString(frames.getCount()));
+        segments.put("slow_frames", Long.toString(view.slowFrames));
+        segments.put("frozen_frames", Long.toString(view.frozenFrames));
+        segments.put("frame_p50", Long.toString(frames.getPercentile(50)));
+        segments.put("frame_p90", Long.toString(frames.getPercentile(90)));
+        segments.put("frame_p99", Long.toString(frames.getPercentile(99)));
+        segments.put("frame_max", Long.toString(frames.getMax()));
+        return segments;
+    }
+
+    /**
+     * 会话进入后台时暂停
+     */
+    synchronized void pause() {
+        running_ = false;
+    }
+
+    /**
+     * 会话回到前台时继续
+     */
+    synchronized void resume() {
+        if (enabled_ && current_ != null && !running_) {
+            startCallbacks();
+        }
+    }
+
+    private void startCallbacks() {
+        // the gap while paused is not a frame
+        lastFrameNanos_ = 0;
+        running_ = true;
+        if (callbackPending_) {
+            return;
+        }
+        callbackPending_ = true;
+        if (mainHandler_ == null) {
+            mainHandler_ = new Handler(Looper.getMainLooper());
+            postCallback_ = new Runnable() {
+                @Override
+                public void run() {
+                    FrameCallback.post(FrameTracker.this);
+                }
+            };
+        }
+        mainHandler_.post(postCallback_);
+    }
+
+    /**
+     * 记录一帧，在主线程调用
+     * @return whether to keep receiving frames
+     */
+    synchronized boolean onFrame(final long frameTimeNanos) {
+        if (!running_ || current_ == null) {
+            callbackPending_ = false;
+            return false;
+        }
+        if (lastFrameNanos_ != 0) {
+            final long millis = (frameTimeNanos - lastFrameNanos_) / 1000000;
+            current_.frames.add(millis);
+            if (millis >= FROZEN_FRAME_MILLIS) {
+                current_.frozenFrames++;
+            } else if (millis >= SLOW_FRAME_MILLIS) {
+                current_.slowFrames++;
+            }
+        }
+        lastFrameNanos_ = frameTimeNanos;
+        return true;
+    }
+
+    /**
+     * Loaded only on Android 4.1 and later, where Choreographer exists.
+     */
+    @TargetApi(16)
+    private static final class FrameCallback implements Choreographer.FrameCallback {
+        private final FrameTracker tracker_;
+
+        private FrameCallback(final FrameTracker tracker) {
+            tracker_ = tracker;
+        }
+
+        static void post(final FrameTracker tracker) {
+            Choreographer.getInstance().postFrameCallback(new FrameCallback(tracker));
+        }
+
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            if (tracker_.onFrame(frameTimeNanos)) {
+                Choreographer.getInstance().postFrameCallback(this);
+            }
+        }
+    }
+}
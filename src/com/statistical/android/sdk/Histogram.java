@@ -0,0 +1,133 @@
+package com.statistical.android.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * 直方图
+ * Aggregates non-negative long values into count, min, max, sum and log-linear buckets,
+ * from which percentiles are estimated within 1/SUB_BUCKETS of the value. Values below
+ * SUB_BUCKETS have a bucket each; above that, every power of two is split into
+ * SUB_BUCKETS buckets. The buckets are a primitive array allocated on the first value,
+ * so adding a value doesn't allocate. Not thread safe, callers synchronize.
+ */
+class Histogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private int[] counts_;
+    private long count_;
+    private long min_;
+    private long max_;
+    private long sum_;
+
+    /**
+     * 添加一个值，负值按0处理
+     */
+    void add(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        if (counts_ == null) {
+            counts_ = new int[BUCKETS];
+        }
+        counts_[bucket(value)]++;
+        if (count_ == 0 || value < min_) {
+            min_ = value;
+        }
+        if (value > max_) {
+            max_ = value;
+        }
+        sum_ += value;
+        count_++;
+    }
+
+    long getCount() {
+        return count_;
+    }
+
+    long getMin() {
+        return min_;
+    }
+
+    long getMax() {
+        return max_;
+    }
+
+    long getSum() {
+        return sum_;
+    }
+
+    long getAverage() {
+        return count_ == 0 ? 0 : sum_ / count_;
+    }
+
+    /**
+     * 估计百分位数
+     * @param percentile between 0 and 100
+     * @return the middle of the bucket holding the percentile, within min and max
+     */
+    long getPercentile(final double percentile) {
+        if (count_ == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(count_ * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts_[i];
+            if (seen >= rank) {
+                return Math.max(min_, Math.min(max_, middle(i)));
+            }
+        }
+        return max_;
+    }
+
+    void reset() {
+        if (counts_ != null) {
+            Arrays.fill(counts_, 0);
+        }
+        count_ = 0;
+        min_ = 0;
+        max_ = 0;
+        sum_ = 0;
+    }
+
+    /**
+     * 汇总为JSON
+     * @return {"count", "min", "max", "avg", "p95"}
+     */
+    JSONObject toJSON() {
+        final JSONObject json = new JSONObject();
+        try {
+            json.put("count", count_);
+            json.put("min", min_);
+            json.put("max", max_);
+            json.put("avg", getAverage());
+            json.put("p95", getPercentile(95));
+        } catch (JSONException ignored) {
+            // can't happen when putting longs
+        }
+        return json;
+    }
+
+    static int bucket(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long middle(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+}
@@ -0,0 +1,159 @@
+package com.statistical.android.sdk;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.os.Bundle;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 自动生命周期跟踪
+ * Records activity starts and stops through Application.ActivityLifecycleCallbacks, and
+ * fragment visibility changes reported by StatisticalFragment. The callbacks only note
+ * the transition with its System.nanoTime() in a queue; a single drain task on the SDK
+ * scheduler applies them to the session and the view tracker in order, so the UI thread
+ * neither takes the SDK lock nor does any I/O during screen transitions.
+ */
+class LifecycleTracker implements Application.ActivityLifecycleCallbacks {
+    static final int ACTIVITY_STARTED = 1;
+    static final int ACTIVITY_STOPPED = 2;
+    static final int FRAGMENT_STARTED = 3;
+    static final int FRAGMENT_STOPPED = 4;
+
+    private static final class Transition {
+        final int kind;
+        final String name;
+        final long nanos;
+
+        Transition(final int kind, final String name, final long nanos) {
+            this.kind = kind;
+            this.name = name;
+            this.nanos = nanos;
+        }
+    }
+
+    private final ConnectionQueue connectionQueue_;
+    private final ConcurrentLinkedQueue<Transition> transitions_ = new ConcurrentLinkedQueue<Transition>();
+    private final AtomicBoolean draining_ = new AtomicBoolean();
+    private final Runnable drain_ = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private Application application_;
+
+    LifecycleTracker(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 注册Activity生命周期回调，重复调用无效
+     * @return false if the context doesn't belong to an Application
+     */
+    synchronized boolean start(final Context context) {
+        if (application_ != null) {
+            return true;
+        }
+        final Context applicationContext = context.getApplicationContext();
+        if (!(applicationContext instanceof Application)) {
+            return false;
+        }
+        application_ = (Application) applicationContext;
+        application_.registerActivityLifecycleCallbacks(this);
+        return true;
+    }
+
+    /**
+     * 取消注册并丢弃未处理的变化
+     * Unregisters and drops the transitions not applied yet. A drain task dropped by the
+     * scheduler's shutdown would otherwise leave the draining flag set for good.
+     */
+    synchronized void stop() {
+        if (application_ != null) {
+            application_.unregisterActivityLifecycleCallbacks(this);
+            application_ = null;
+        }
+        transitions_.clear();
+        draining_.set(false);
+    }
+
+    synchronized boolean isStarted() {
+        return application_ != null;
+    }
+
+    /**
+     * 记录一次生命周期变化，在后台按顺序处理
+     */
+    void post(final int kind, final String name) {
+        transitions_.add(new Transition(kind, name, System.nanoTime()));
+        if (draining_.compareAndSet(false, true)) {
+            connectionQueue_.getScheduler().submit(drain_);
+        }
+    }
+
+    private void drain() {
+        do {
+            Transition transition;
+            while ((transition = transitions_.poll()) != null) {
+                apply(transition);
+            }
+            draining_.set(false);
+            // a transition posted after the last poll but before the flag was cleared
+        } while (!transitions_.isEmpty() && draining_.compareAndSet(false, true));
+    }
+
+    private static void apply(final Transition transition) {
+        final Statistical statistical = Statistical.sharedInstance();
+        switch (transition.kind) {
+            case ACTIVITY_STARTED:
+                statistical.onActivityStarted(transition.name, transition.nanos);
+                break;
+            case ACTIVITY_STOPPED:
+                statistical.onActivityStopped(transition.name, transition.nanos);
+                break;
+            case FRAGMENT_STARTED:
+                statistical.onViewStarted(transition.name, transition.nanos);
+                break;
+            case FRAGMENT_STOPPED:
+                statistical.onViewStopped(transition.name, transition.nanos);
+                break;
+            default:
+                break;
+        }
+    }
+
+    @Override
+    public void onActivityStarted(final Activity activity) {
+        connectionQueue_.getStartupTracer().onActivityStarted(activity);
+        post(ACTIVITY_STARTED, activity.getClass().getName());
+    }
+
+    @Override
+    public void onActivityStopped(final Activity activity) {
+        connectionQueue_.getStartupTracer().onActivityStopped(activity);
+        post(ACTIVITY_STOPPED, activity.getClass().getName());
+    }
+
+    @Override
+    public void onActivityCreated(final Activity activity, final Bundle savedInstanceState) {
+    }
+
+    @Override
+    public void onActivityResumed(final Activity activity) {
+    }
+
+    @Override
+    public void onActivityPaused(final Activity activity) {
+    }
+
+    @Override
+    public void onActivitySaveInstanceState(final Activity activity, final Bundle outState) {
+    }
+
+    @Override
+    public void onActivityDestroyed(final Activity activity) {
+    }
+}
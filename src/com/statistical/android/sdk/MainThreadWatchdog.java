@@ -0,0 +1,190 @@
+package com.statistical.android.sdk;
+
+import android.os.Debug;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 主线程卡顿监测
+ * A watchdog thread that posts a heartbeat to the main looper and checks a few times per
+ * threshold whether it ran. When the main thread hasn't run it for longer than the
+ * threshold, the watchdog samples the main thread's stack until the main thread is
+ * responsive again, and then reports the stall as a non-fatal crash with the first
+ * sample as the stack trace, the other samples below it and the stall duration in
+ * "_stall_ms". A stall that collects MAX_SAMPLES samples is reported right away with
+ * "_stall_ongoing" set, as the process may be killed before it ends. The heartbeat is
+ * one Runnable allocated per start and a tick allocates nothing. The thread only runs
+ * while a session is in the foreground. Stalls while a debugger is attached are ignored.
+ */
+class MainThreadWatchdog {
+    /**
+     * 默认卡顿阈值
+     */
+    static final long DEFAULT_THRESHOLD_IN_MILLIS = 2000;
+    static final long MIN_THRESHOLD_IN_MILLIS = 250;
+    static final int MAX_SAMPLES = 5;
+    private static final int CHECKS_PER_THRESHOLD = 5;
+    static final String STALL_EXCEPTION = "com.statistical.android.sdk.MainThreadStall";
+
+    private final ConnectionQueue connectionQueue_;
+    private Handler handler_;
+    // the running watch, a stopped watch exits when it sees it isn't this one
+    private volatile Watch watch_;
+    private boolean enabled_;
+    private volatile long thresholdInMillis_ = DEFAULT_THRESHOLD_IN_MILLIS;
+
+    /**
+     * One run of the watchdog thread. Each start gets its own, so a stopped thread that is
+     * still sampling or reporting never shares its state with the next one.
+     */
+    private final class Watch implements Runnable {
+        final Thread thread = new Thread(this, "Statistical-Watchdog");
+        final Runnable heartbeat = new Runnable() {
+            @Override
+            public void run() {
+                pending = false;
+            }
+        };
+        final StackTraceElement[][] samples = new StackTraceElement[MAX_SAMPLES][];
+        final long[] sampleTimes = new long[MAX_SAMPLES];
+        volatile boolean pending;
+        // the following are only touched by this watch's thread
+        long postedAt;
+        int sampleCount;
+        boolean reported;
+
+        @Override
+        public void run() {
+            while (watch_ == this) {
+                final long threshold = thresholdInMillis_;
+                if (!pending) {
+                    if (sampleCount > 0) {
+                        stallEnded();
+                    }
+                    pending = true;
+                    postedAt = SystemClock.uptimeMillis();
+                    handler_.post(heartbeat);
+                }
+                try {
+                    Thread.sleep(threshold / CHECKS_PER_THRESHOLD);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (pending) {
+                    check(threshold);
+                }
+            }
+        }
+
+        private void check(final long threshold) {
+            final long stalled = SystemClock.uptimeMillis() - postedAt;
+            if (stalled < threshold || Debug.isDebuggerConnected()) {
+                return;
+            }
+            // one sample per threshold of stall
+            if (sampleCount < MAX_SAMPLES && stalled >= threshold * (sampleCount + 1)) {
+                samples[sampleCount] = Looper.getMainLooper().getThread().getStackTrace();
+                sampleTimes[sampleCount] = stalled;
+                sampleCount++;
+                if (sampleCount == MAX_SAMPLES && !reported) {
+                    report(stalled, true);
+                    reported = true;
+                }
+            }
+        }
+
+        private void stallEnded() {
+            if (!reported) {
+                report(SystemClock.uptimeMillis() - postedAt, false);
+            }
+            for (int i = 0; i < sampleCount; i++) {
+                samples[i] = null;
+            }
+            sampleCount = 0;
+            reported = false;
+        }
+
+        private void report(final long stallInMillis, final boolean ongoing) {
+            final StringBuilder error = new StringBuilder();
+            error.append(STALL_EXCEPTION).append(": main thread unresponsive for ").append(stallInMillis).append(" ms\n");
+            appendFrames(error, samples[0]);
+            for (int i = 1; i < sampleCount; i++) {
+                error.append("Sampled after ").append(sampleTimes[i]).append(" ms\n");
+                appendFrames(error, samples[i]);
+            }
+            final Map<String, String> extras = new HashMap<String, String>();
+            extras.put("_stall_ms", Long.toString(stallInMillis));
+            if (ongoing) {
+                extras.put("_stall_ongoing", "true");
+            }
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Main thread unresponsive for " + stallInMillis + " ms");
+            }
+            try {
+                connectionQueue_.sendCrashReport(error.toString(), true, 0, extras);
+            } catch (RuntimeException e) {
+                // never let the report take the host app down from this thread
+                if (Statistical.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Statistical.TAG, "Can't report main thread stall", e);
+                }
+            }
+        }
+    }
+
+    MainThreadWatchdog(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 开启或关闭监测，开启后在会话期间运行
+     * @param thresholdInMillis how long the main thread may be unresponsive before it counts as a stall
+     */
+    synchronized void setEnabled(final boolean enabled, final long thresholdInMillis) {
+        enabled_ = enabled;
+        thresholdInMillis_ = Math.max(MIN_THRESHOLD_IN_MILLIS, thresholdInMillis);
+    }
+
+    /**
+     * 会话回到前台时调用
+     */
+    synchronized void start() {
+        if (!enabled_ || watch_ != null) {
+            return;
+        }
+        if (handler_ == null) {
+            handler_ = new Handler(Looper.getMainLooper());
+        }
+        final Watch watch = new Watch();
+        watch.thread.setDaemon(true);
+        watch_ = watch;
+        watch.thread.start();
+    }
+
+    /**
+     * 会话进入后台时调用，进行中的卡顿被丢弃
+     */
+    synchronized void stop() {
+        final Watch watch = watch_;
+        if (watch != null) {
+            watch_ = null;
+            watch.thread.interrupt();
+            handler_.removeCallbacks(watch.heartbeat);
+        }
+    }
+
+    private static void appendFrames(final StringBuilder builder, final StackTraceElement[] frames) {
+        for (StackTraceElement frame : frames) {
+            builder.append("\tat ").append(frame).append('\n');
+        }
+    }
+
+    // for unit testing
+    boolean isRunning() {
+        return watch_ != null;
+    }
+}
@@ -0,0 +1,159 @@
+package com.statistical.android.sdk;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Iterator;
+
+/**
+ * 设备指标指纹
+ * Remembers the device metrics the server has acknowledged, so begin_session carries
+ * only the metrics that changed since, and none at all in the common case where
+ * nothing did. All metrics are sent again once the refresh interval has passed since
+ * the last complete set was acknowledged. Such a full refresh is marked in the queued
+ * request, and when the server acknowledges it, it replaces the acknowledged metrics,
+ * so metrics that no longer exist are forgotten.
+ */
+class MetricsFingerprint {
+    /**
+     * 默认每7天发送一次完整的设备指标
+     */
+    static final long DEFAULT_REFRESH_INTERVAL_IN_SECONDS = 7 * 24 * 60 * 60;
+    private static final String ACKNOWLEDGED_PREFERENCE = "METRICS_ACKNOWLEDGED";
+    private static final String METRICS_KEY = "metrics";
+    private static final String REFRESHED_KEY = "refreshed";
+    private static final String DEVICE_ID_KEY = "device_id";
+    private static final String METRICS_PARAMETER = "&metrics=";
+    // marks a queued request carrying all metrics, removed before the request is sent
+    private static final String FULL_REFRESH_MARKER = "&metrics_full=1";
+
+    private StatisticalStore store_;
+    private volatile long refreshIntervalInSeconds_ = DEFAULT_REFRESH_INTERVAL_IN_SECONDS;
+
+    void setStore(final StatisticalStore store) {
+        store_ = store;
+    }
+
+    /**
+     * 忘记服务器已确认的设备指标，用于halt
+     */
+    synchronized void clear() {
+        if (store_ != null) {
+            store_.setPreference(ACKNOWLEDGED_PREFERENCE, null);
+        }
+    }
+
+    void setRefreshInterval(final long seconds) {
+        refreshIntervalInSeconds_ = seconds;
+    }
+
+    /**
+     * 去掉请求中仅供本地使用的标记
+     * @return the stored request as it is sent to the server
+     */
+    static String withoutMarker(final String request) {
+        return request.replace(FULL_REFRESH_MARKER, "");
+    }
+
+    /**
+     * 返回需要发送的设备指标参数
+     * @param metrics all current metrics, as built by DeviceInfo
+     * @param deviceId current device ID, all metrics are sent if it differs from the acknowledged one
+     * @return the metrics parameter with URL encoded JSON of the metrics to send, marked if
+     *         it carries all of them, or null if the server already has them
+     */
+    synchronized String metricsToSend(final JSONObject metrics, final String deviceId) {
+        final JSONObject acknowledged = readAcknowledged();
+        final boolean full = acknowledged == null || deviceId == null || !deviceId.equals(acknowledged.optString(DEVICE_ID_KEY, null))
+                || Statistical.currentTimestamp() - acknowledged.optLong(REFRESHED_KEY) >= refreshIntervalInSeconds_;
+        final JSONObject changed;
+        if (full) {
+            changed = metrics;
+        } else {
+            changed = new JSONObject();
+            final JSONObject previous = acknowledged.optJSONObject(METRICS_KEY);
+            final Iterator<String> keys = metrics.keys();
+            try {
+                while (keys.hasNext()) {
+                    final String key = keys.next();
+                    final String value = metrics.optString(key);
+                    if (previous == null || !value.equals(previous.optString(key, null))) {
+                        changed.put(key, value);
+                    }
+                }
+            } catch (JSONException ignored) {
+                // shouldn't ever happen when putting String objects into a JSONObject
+            }
+        }
+        if (changed.length() == 0) {
+            return null;
+        }
+        String encoded;
+        try {
+            encoded = URLEncoder.encode(changed.toString(), "UTF-8");
+        } catch (UnsupportedEncodingException ignored) {
+            encoded = changed.toString();
+        }
+        return METRICS_PARAMETER + encoded + (full ? FULL_REFRESH_MARKER : "");
+    }
+
+    /**
+     * 服务器确认请求后调用，记录请求中的设备指标
+     * Called when the server acknowledged a request. A full refresh replaces the
+     * acknowledged metrics, other requests merge the metrics they carried into them.
+     * @param request the stored request as queued
+     * @param deviceId device ID the request was sent with
+     */
+    synchronized void onAcknowledged(final String request, final String deviceId) {
+        final int start = request.indexOf(METRICS_PARAMETER);
+        if (start < 0 || store_ == null) {
+            return;
+        }
+        final int end = request.indexOf('&', start + METRICS_PARAMETER.length());
+        final String encoded = end < 0 ? request.substring(start + METRICS_PARAMETER.length()) : request.substring(start + METRICS_PARAMETER.length(), end);
+        try {
+            final JSONObject sent = new JSONObject(URLDecoder.decode(encoded, "UTF-8"));
+            final boolean full = request.contains(FULL_REFRESH_MARKER);
+            JSONObject acknowledged = readAcknowledged();
+            if (full || acknowledged == null || !deviceId.equals(acknowledged.optString(DEVICE_ID_KEY, null))) {
+                acknowledged = new JSONObject();
+                acknowledged.put(DEVICE_ID_KEY, deviceId);
+            }
+            JSONObject metrics = acknowledged.optJSONObject(METRICS_KEY);
+            if (metrics == null) {
+                metrics = new JSONObject();
+            }
+            final Iterator<String> keys = sent.keys();
+            while (keys.hasNext()) {
+                final String key = keys.next();
+                metrics.put(key, sent.optString(key));
+            }
+            acknowledged.put(METRICS_KEY, metrics);
+            if (full) {
+                acknowledged.put(REFRESHED_KEY, Statistical.currentTimestamp());
+            }
+            store_.setPreference(ACKNOWLEDGED_PREFERENCE, acknowledged.toString());
+        } catch (Exception e) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Can't record acknowledged metrics", e);
+            }
+        }
+    }
+
+    private JSONObject readAcknowledged() {
+        final String stored = store_ == null ? null : store_.getPreference(ACKNOWLEDGED_PREFERENCE);
+        if (stored != null) {
+            try {
+                return new JSONObject(stored);
+            } catch (JSONException ignored) {
+                store_.setPreference(ACKNOWLEDGED_PREFERENCE, null);
+            }
+        }
+        return null;
+    }
+}
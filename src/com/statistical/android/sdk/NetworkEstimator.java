@@ -0,0 +1,163 @@
+package com.statistical.android.sdk;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 网络延迟和吞吐量估计
+ * Estimates round-trip times and throughput per network type from the SDK's own
+ * uploads, and derives connect and read timeouts and the event batch size from them.
+ * Until enough requests have been measured on a network type, the defaults apply.
+ */
+class NetworkEstimator {
+    static final int DEFAULT_TIMEOUT_IN_MILLISECONDS = 30000;
+    static final int DEFAULT_MIN_TIMEOUT_IN_MILLISECONDS = 5000;
+    static final int MIN_EVENT_BATCH_SIZE = 10;
+    static final int MAX_EVENT_BATCH_SIZE = 40;
+    private static final int SAMPLE_COUNT = 32;
+    private static final int MIN_SAMPLES = 5;
+    private static final int TIMEOUT_PERCENTILE = 95;
+    private static final int TIMEOUT_MULTIPLIER = 3;
+    private static final long SLOW_REQUEST_IN_MILLISECONDS = 500;
+    private static final double THROUGHPUT_SMOOTHING = 0.2d;
+
+    /**
+     * Most recent measurements for one network type.
+     */
+    private static class Samples {
+        final long[] connect = new long[SAMPLE_COUNT];
+        final long[] response = new long[SAMPLE_COUNT];
+        int count;
+        int next;
+        double bytesPerMillisecond;
+    }
+
+    private final Map<String, Samples> samples_ = new HashMap<String, Samples>();
+    private int minTimeout_ = DEFAULT_MIN_TIMEOUT_IN_MILLISECONDS;
+    private int maxTimeout_ = DEFAULT_TIMEOUT_IN_MILLISECONDS;
+
+    /**
+     * 设置超时的上下限
+     */
+    synchronized void setTimeoutBounds(final int minTimeout, final int maxTimeout) {
+        minTimeout_ = minTimeout;
+        maxTimeout_ = maxTimeout;
+    }
+
+    /**
+     * 记录一次成功的请求
+     * @param networkType network the request went over
+     * @param connectMillis time until the connection was established and the request sent
+     * @param responseMillis time from then until the response was read
+     * @param bytes request and response bytes transferred
+     */
+    synchronized void record(final String networkType, final long connectMillis, final long responseMillis, final long bytes) {
+        final Samples samples = samplesFor(networkType);
+        add(samples, connectMillis, responseMillis);
+        final long elapsed = connectMillis + responseMillis;
+        if (elapsed > 0 && bytes > 0) {
+            final double bytesPerMillisecond = (double) bytes / elapsed;
+            samples.bytesPerMillisecond = samples.bytesPerMillisecond == 0
+                    ? bytesPerMillisecond
+                    : samples.bytesPerMillisecond + THROUGHPUT_SMOOTHING * (bytesPerMillisecond - samples.bytesPerMillisecond);
+        }
+    }
+
+    /**
+     * 记录一次超时，使之后的超时时间相应变长
+     * Records a request that timed out. The elapsed time counts as a sample, so repeated
+     * timeouts raise the following timeouts up to the upper bound.
+     */
+    synchronized void recordTimeout(final String networkType, final boolean whileConnecting, final long elapsedMillis) {
+        final Samples samples = samplesFor(networkType);
+        if (whileConnecting) {
+            add(samples, elapsedMillis, 0);
+        } else {
+            add(samples, 0, elapsedMillis);
+        }
+    }
+
+    /**
+     * 连接超时
+     */
+    synchronized int getConnectTimeout(final String networkType) {
+        final Samples samples = samples_.get(networkType);
+        if (samples == null || samples.count < MIN_SAMPLES) {
+            return maxTimeout_;
+        }
+        return bound(percentile(samples.connect, samples.count, TIMEOUT_PERCENTILE) * TIMEOUT_MULTIPLIER);
+    }
+
+    /**
+     * 读取超时，包括按吞吐量估算的上传请求体的时间
+     * @param requestBytes size of the request body, 0 if there is none
+     */
+    synchronized int getReadTimeout(final String networkType, final long requestBytes) {
+        final Samples samples = samples_.get(networkType);
+        if (samples == null || samples.count < MIN_SAMPLES) {
+            return maxTimeout_;
+        }
+        long timeout = percentile(samples.response, samples.count, TIMEOUT_PERCENTILE) * TIMEOUT_MULTIPLIER;
+        if (requestBytes > 0 && samples.bytesPerMillisecond > 0) {
+            timeout += (long) (requestBytes / samples.bytesPerMillisecond) * TIMEOUT_MULTIPLIER;
+        }
+        return bound(timeout);
+    }
+
+    /**
+     * 每次发送的事件数。网络越慢，每个请求携带的事件越多，以减少请求次数
+     * Number of events to collect before they are sent. The slower the median request
+     * on this network, the more events go into one request, doubling for every doubling
+     * of latency above SLOW_REQUEST_IN_MILLISECONDS.
+     */
+    synchronized int getEventBatchSize(final String networkType) {
+        final Samples samples = samples_.get(networkType);
+        if (samples == null || samples.count < MIN_SAMPLES) {
+            return MIN_EVENT_BATCH_SIZE;
+        }
+        long median = percentile(samples.connect, samples.count, 50) + percentile(samples.response, samples.count, 50);
+        int batchSize = MIN_EVENT_BATCH_SIZE;
+        while (median > SLOW_REQUEST_IN_MILLISECONDS && batchSize < MAX_EVENT_BATCH_SIZE) {
+            batchSize *= 2;
+            median /= 2;
+        }
+        return Math.min(batchSize, MAX_EVENT_BATCH_SIZE);
+    }
+
+    /**
+     * 估计的吞吐量
+     * @return estimated bytes per millisecond, 0 if unknown
+     */
+    synchronized double getThroughput(final String networkType) {
+        final Samples samples = samples_.get(networkType);
+        return samples == null ? 0 : samples.bytesPerMillisecond;
+    }
+
+    private Samples samplesFor(final String networkType) {
+        Samples samples = samples_.get(networkType);
+        if (samples == null) {
+            samples = new Samples();
+            samples_.put(networkType, samples);
+        }
+        return samples;
+    }
+
+    private static void add(final Samples samples, final long connectMillis, final long responseMillis) {
+        samples.connect[samples.next] = connectMillis;
+        samples.response[samples.next] = responseMillis;
+        samples.next = (samples.next + 1) % SAMPLE_COUNT;
+        samples.count = Math.min(samples.count + 1, SAMPLE_COUNT);
+    }
+
+    private static long percentile(final long[] values, final int count, final int percentile) {
+        final long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+        final int index = (int) Math.ceil(percentile / 100.0d * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    private int bound(final long timeout) {
+        return (int) Math.max(minTimeout_, Math.min(maxTimeout_, timeout));
+    }
+}
@@ -0,0 +1,140 @@
+package com.statistical.android.sdk;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * 网络状态缓存
+ * Caches the current network state: whether there is a connection, its type, whether
+ * it is metered and the device's address on it. The state is read in the background
+ * once at start and again on every connectivity change, so request builders, the
+ * upload scheduler and crash reports read it without locking or system calls. It only
+ * observes the network and never turns radios on or off.
+ */
+class NetworkState {
+    /**
+     * 一次网络状态
+     */
+    static final class Snapshot {
+        final boolean connected;
+        final boolean metered;
+        /** "wifi" or "mobile", as reported by DeviceInfo.getNetWorkType */
+        final String type;
+        /** address on the active network, empty if unknown */
+        final String address;
+
+        Snapshot(final boolean connected, final boolean metered, final String type, final String address) {
+            this.connected = connected;
+            this.metered = metered;
+            this.type = type;
+            this.address = address;
+        }
+    }
+
+    /**
+     * 还未读取网络状态时假定有网络，与以前的行为一致
+     * Assumed until the state is known, which keeps uploads going as they always did.
+     */
+    static final Snapshot UNKNOWN = new Snapshot(true, false, "wifi", "");
+
+    private final ConnectionQueue connectionQueue_;
+    private volatile Snapshot snapshot_ = UNKNOWN;
+    private Context context_;
+    private BroadcastReceiver receiver_;
+    private final Object refreshLock_ = new Object();
+
+    NetworkState(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 开始监听网络变化
+     * Reads the network state in the background and starts listening for connectivity
+     * changes. Calling it again with another context re-registers the listener.
+     */
+    synchronized void start(final Context context) {
+        stop();
+        context_ = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        receiver_ = new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                refreshAsync();
+            }
+        };
+        context_.registerReceiver(receiver_, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        refreshAsync();
+    }
+
+    /**
+     * 停止监听
+     */
+    synchronized void stop() {
+        if (context_ != null && receiver_ != null) {
+            try {
+                context_.unregisterReceiver(receiver_);
+            } catch (IllegalArgumentException ignored) {
+                // receiver was not registered
+            }
+        }
+        receiver_ = null;
+        context_ = null;
+    }
+
+    /**
+     * 当前网络状态
+     */
+    Snapshot get() {
+        return snapshot_;
+    }
+
+    private synchronized void refreshAsync() {
+        final Context context = context_;
+        if (context == null || connectionQueue_.getScheduler() == null) {
+            return;
+        }
+        connectionQueue_.getScheduler().submit(new Runnable() {
+            @Override
+            public void run() {
+                refresh(context);
+            }
+        });
+    }
+
+    private void refresh(final Context context) {
+        // refreshes run one at a time so a stale one can't overwrite a newer state
+        synchronized (refreshLock_) {
+            Snapshot snapshot;
+            try {
+                final ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+                final NetworkInfo info = cm == null ? null : cm.getActiveNetworkInfo();
+                final boolean connected = info != null && info.isConnected();
+                final String type = DeviceInfo.getNetWorkType(info);
+                boolean metered = "mobile".equals(type);
+                if (cm != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                    metered = cm.isActiveNetworkMetered();
+                }
+                final String address = connected ? DeviceInfo.getIp(context, type) : "";
+                snapshot = new Snapshot(connected, metered, type, address == null ? "" : address);
+            } catch (SecurityException e) {
+                // without ACCESS_NETWORK_STATE keep uploading the way we always did
+                if (Statistical.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Statistical.TAG, "Can't read network state, uploads won't follow connectivity", e);
+                }
+                snapshot = UNKNOWN;
+            }
+
+            final Snapshot previous = snapshot_;
+            snapshot_ = snapshot;
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.d(Statistical.TAG, "Network state: connected=" + snapshot.connected + ", type=" + snapshot.type + ", metered=" + snapshot.metered);
+            }
+            connectionQueue_.getUploadScheduler().onNetworkChanged(previous, snapshot);
+        }
+    }
+}
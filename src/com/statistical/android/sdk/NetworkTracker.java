@@ -0,0 +1,161 @@
+package com.statistical.android.sdk;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 应用网络请求统计
+ * Aggregates the app's own HTTP requests per endpoint, that is per method, host and
+ * normalised path, into a latency histogram, status class counters and byte totals.
+ * The aggregates are turned into one "_network" event per endpoint when the events are
+ * flushed, instead of one event per request. The number of endpoints is bounded;
+ * requests to endpoints beyond the bound are aggregated under the path "other".
+ */
+class NetworkTracker {
+    static final String NETWORK_EVENT = "_network";
+    /**
+     * 每个统计周期最多的端点数
+     */
+    static final int MAX_ENDPOINTS = 50;
+    static final String OTHER_PATH = "other";
+    // numbers, UUIDs and long hex or base64-like tokens in a path are identifiers
+    private static final Pattern ID_SEGMENT = Pattern.compile("[0-9]+|[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}|[0-9a-fA-F]{16,}|[A-Za-z0-9_\\-]{24,}");
+
+    private static final class Endpoint {
+        final String method;
+        final String host;
+        final String path;
+        final Histogram durations = new Histogram();
+        // 2xx, 3xx, 4xx, 5xx, failed without a status
+        final long[] statuses = new long[5];
+        long requestBytes;
+        long responseBytes;
+
+        Endpoint(final String method, final String host, final String path) {
+            this.method = method;
+            this.host = host;
+            this.path = path;
+        }
+    }
+
+    private Map<String, Endpoint> endpoints_ = new LinkedHashMap<String, Endpoint>();
+
+    /**
+     * 记录一个请求
+     * @param status HTTP status code, or a value below 100 if the request failed without one
+     * @param requestBytes bytes sent in the body, -1 if unknown
+     * @param responseBytes bytes received in the body, -1 if unknown
+     */
+    synchronized void record(final String method, final String url, final int status, final long requestBytes, final long responseBytes, final long durationMillis) {
+        String host;
+        String path;
+        try {
+            final URL parsed = new URL(url);
+            host = parsed.getHost().toLowerCase(Locale.US);
+            path = normalisePath(parsed.getPath());
+        } catch (MalformedURLException e) {
+            host = "";
+            path = normalisePath(url);
+        }
+        final String normalisedMethod = method == null ? "GET" : method.toUpperCase(Locale.US);
+        String key = normalisedMethod + " " + host + path;
+        Endpoint endpoint = endpoints_.get(key);
+        if (endpoint == null) {
+            if (endpoints_.size() >= MAX_ENDPOINTS) {
+                // real paths start with a slash, so this can't be an actual endpoint
+                path = OTHER_PATH;
+                key = normalisedMethod + " " + host + path;
+                endpoint = endpoints_.get(key);
+            }
+            if (endpoint == null) {
+                endpoint = new Endpoint(normalisedMethod, host, path);
+                endpoints_.put(key, endpoint);
+            }
+        }
+        endpoint.durations.add(durationMillis);
+        endpoint.statuses[status >= 200 && status < 600 ? status / 100 - 2 : 4]++;
+        if (requestBytes > 0) {
+            endpoint.requestBytes += requestBytes;
+        }
+        if (responseBytes > 0) {
+            endpoint.responseBytes += responseBytes;
+        }
+    }
+
+    /**
+     * 取出汇总事件并开始新的统计周期
+     */
+    synchronized List<Event> drainSummaries() {
+        final List<Event> events = new ArrayList<Event>(endpoints_.size());
+        if (endpoints_.isEmpty()) {
+            return events;
+        }
+        final int timestamp = Statistical.currentTimestamp();
+        final int hour = Statistical.currentHour();
+        final int dow = Statistical.currentDayOfWeek();
+        for (Endpoint endpoint : endpoints_.values()) {
+            final Map<String, String> segments = new HashMap<String, String>();
+            segments.put("method", endpoint.method);
+            segments.put("host", endpoint.host);
+            segments.put("path", endpoint.path);
+            segments.put("p50", Long.toString(endpoint.durations.getPercentile(50)));
+            segments.put("p90", Long.toString(endpoint.durations.getPercentile(90)));
+            segments.put("p99", Long.toString(endpoint.durations.getPercentile(99)));
+            segments.put("max", Long.toString(endpoint.durations.getMax()));
+            segments.put("2xx", Long.toString(endpoint.statuses[0]));
+            segments.put("3xx", Long.toString(endpoint.statuses[1]));
+            segments.put("4xx", Long.toString(endpoint.statuses[2]));
+            segments.put("5xx", Long.toString(endpoint.statuses[3]));
+            segments.put("failed", Long.toString(endpoint.statuses[4]));
+            segments.put("sent", Long.toString(endpoint.requestBytes));
+            segments.put("received", Long.toString(endpoint.responseBytes));
+
+            final Event event = new Event();
+            event.key = NETWORK_EVENT;
+            event.segmentation = segments;
+            event.count = (int) endpoint.durations.getCount();
+            event.sum = endpoint.durations.getSum();
+            event.timestamp = timestamp;
+            event.hour = hour;
+            event.dow = dow;
+            events.add(event);
+        }
+        endpoints_ = new LinkedHashMap<String, Endpoint>();
+        return events;
+    }
+
+    /**
+     * 路径标准化，去掉查询参数并将标识符替换为":id"
+     * Drops the query and fragment and replaces path segments that look like
+     * identifiers with ":id", so /users/42/posts and /users/43/posts are one endpoint.
+     */
+    static String normalisePath(final String path) {
+        if (path == null || path.length() == 0) {
+            return "/";
+        }
+        String result = path;
+        final int query = result.indexOf('?');
+        if (query >= 0) {
+            result = result.substring(0, query);
+        }
+        final int fragment = result.indexOf('#');
+        if (fragment >= 0) {
+            result = result.substring(0, fragment);
+        }
+        final StringBuilder normalised = new StringBuilder(result.length());
+        for (String segment : result.split("/")) {
+            if (segment.length() == 0) {
+                continue;
+            }
+            normalised.append('/').append(ID_SEGMENT.matcher(segment).matches() ? ":id" : segment);
+        }
+        return normalised.length() == 0 ? "/" : normalised.toString();
+    }
+}
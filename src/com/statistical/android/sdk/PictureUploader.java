@@ -0,0 +1,588 @@
+package com.statistical.android.sdk;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.UUID;
+import java.util.concurrent.Future;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * 用户头像上传
+ * Uploads the user's profile picture separately from the connection queue, so a large
+ * image never holds back session and event requests. The picture is downsampled and
+ * re-encoded before upload and then sent in chunks, one per task on the SDK's network
+ * thread so queued requests go in between. After every chunk the server reports the
+ * offset it has stored, which lets an interrupted upload resume from there instead of
+ * starting over.
+ * <p>
+ * Chunk protocol: each chunk is a POST to /a with picture_upload (the upload id),
+ * content_type, offset and total in the query, a Content-Range header and the raw bytes
+ * as body. The server answers {"result":"Success","offset":n} with the number of bytes
+ * it has stored; a response without an offset is not an acknowledgement. A server that
+ * answers the first chunk with 400, 404, 405 or 501, or with success but no offset,
+ * doesn't support chunks and gets the whole picture as a multipart "binaryFile" part of a
+ * user_details request, as before.
+ */
+class PictureUploader implements Runnable {
+    static final int DEFAULT_MAX_DIMENSION = 1024;
+    static final int DEFAULT_MAX_BYTES = 200 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int INITIAL_JPEG_QUALITY = 90;
+    private static final int MIN_JPEG_QUALITY = 40;
+    private static final String CRLF = "\r\n";
+    private static final String PENDING_PREFERENCE = "PICTURE_UPLOAD";
+    private static final String ID_KEY = "id";
+    private static final String SOURCE_KEY = "source";
+    private static final String FILE_KEY = "file";
+    private static final String TYPE_KEY = "type";
+    private static final String OFFSET_KEY = "offset";
+    private static final String TOTAL_KEY = "total";
+    private static final String TEMPORARY_KEY = "temporary";
+    private static final String MULTIPART_KEY = "multipart";
+    // sendChunk result when the server doesn't support chunked uploads
+    private static final long CHUNKS_UNSUPPORTED = -2;
+
+    private final ConnectionQueue connectionQueue_;
+    private Future<?> uploadFuture_;
+    private volatile int maxDimension_ = DEFAULT_MAX_DIMENSION;
+    private volatile int maxBytes_ = DEFAULT_MAX_BYTES;
+
+    PictureUploader(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 设置头像的尺寸和大小上限
+     * Sets the largest width or height and the largest file size of an uploaded picture.
+     * Applies to pictures that have not been prepared for upload yet.
+     */
+    void setLimits(final int maxDimension, final int maxBytes) {
+        maxDimension_ = maxDimension;
+        maxBytes_ = maxBytes;
+    }
+
+    /**
+     * 添加待上传的头像
+     * Queues the picture at the specified path, replacing a picture that has not been
+     * completely uploaded yet.
+     * @param picturePath local path of the picture, ignored if null or empty
+     */
+    void upload(final String picturePath) {
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store == null || picturePath == null || picturePath.length() == 0) {
+            return;
+        }
+        final JSONObject pending = new JSONObject();
+        try {
+            pending.put(ID_KEY, UUID.randomUUID().toString().replace("-", ""));
+            pending.put(SOURCE_KEY, picturePath);
+        } catch (JSONException ignored) {
+            // shouldn't ever happen when putting String objects into a JSONObject
+        }
+        synchronized (this) {
+            deleteTemporaryFile(readPending(store));
+            store.setPreference(PENDING_PREFERENCE, pending.toString());
+        }
+        tick();
+    }
+
+    /**
+     * 如果有待上传的头像，在后台线程开始上传
+     * Starts uploading on the background thread if a picture is pending and no upload is
+     * running at the moment.
+     */
+    synchronized void tick() {
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store != null && store.getPreference(PENDING_PREFERENCE) != null && (uploadFuture_ == null || uploadFuture_.isDone())) {
+            uploadFuture_ = connectionQueue_.getScheduler().submitBlocking(this);
+        }
+    }
+
+    /**
+     * 取消待上传的头像，用于halt
+     * Cancels the pending upload and deletes its prepared copy. A chunk already in flight
+     * finishes, but finds no pending state to save afterwards.
+     */
+    synchronized void clear() {
+        if (uploadFuture_ != null) {
+            uploadFuture_.cancel(false);
+            uploadFuture_ = null;
+        }
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store != null) {
+            deleteTemporaryFile(readPending(store));
+            store.setPreference(PENDING_PREFERENCE, null);
+        }
+    }
+
+    /**
+     * Queues the next chunk from within the running upload.
+     */
+    private synchronized void resubmit() {
+        uploadFuture_ = connectionQueue_.getScheduler().submitBlocking(this);
+    }
+
+    @Override
+    public void run() {
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        final DeviceId deviceId = connectionQueue_.getDeviceId();
+        if (store == null || deviceId == null || deviceId.getId() == null) {
+            return;
+        }
+        JSONObject pending = readPending(store);
+        try {
+            if (pending == null) {
+                return;
+            }
+            if (!pending.has(FILE_KEY)) {
+                if (!prepare(pending) || !savePending(store, pending)) {
+                    deleteTemporaryFile(pending);
+                    discardPending(store, pending);
+                    return;
+                }
+            }
+
+            final File file = new File(pending.getString(FILE_KEY));
+            if (!file.isFile()) {
+                // the prepared copy lives in the cache directory and can be removed by the system
+                if (Statistical.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Statistical.TAG, "Picture prepared for upload is gone, dropping it: " + file);
+                }
+                discardPending(store, pending);
+                return;
+            }
+
+            final long total = pending.getLong(TOTAL_KEY);
+            long offset = pending.optLong(OFFSET_KEY);
+            if (pending.optBoolean(MULTIPART_KEY, false)) {
+                if (connectionQueue_.getTrafficMeter().isBudgetExhausted(connectionQueue_.getUploadScheduler().getNetworkType())
+                        || !sendMultipart(file, pending, deviceId.getId())) {
+                    return;
+                }
+                offset = total;
+            }
+            while (offset < total) {
+                if (connectionQueue_.getTrafficMeter().isBudgetExhausted(connectionQueue_.getUploadScheduler().getNetworkType())) {
+                    // resume once the budget allows it again
+                    return;
+                }
+                final long acknowledged = sendChunk(file, pending, offset, total, deviceId.getId());
+                if (acknowledged == CHUNKS_UNSUPPORTED) {
+                    if (Statistical.sharedInstance().isLoggingEnabled()) {
+                        Log.i(Statistical.TAG, "Server doesn't support chunked picture uploads, sending it in one request");
+                    }
+                    pending.put(MULTIPART_KEY, true);
+                    if (!savePending(store, pending)) {
+                        deleteTemporaryFile(pending);
+                        return;
+                    }
+                    if (!sendMultipart(file, pending, deviceId.getId())) {
+                        return;
+                    }
+                    break;
+                }
+                if (acknowledged < 0 || acknowledged == offset) {
+                    // try again from the acknowledged offset on the next tick
+                    return;
+                }
+                offset = acknowledged;
+                pending.put(OFFSET_KEY, offset);
+                if (!savePending(store, pending)) {
+                    // a newer picture replaced this one while the chunk was in flight
+                    deleteTemporaryFile(pending);
+                    return;
+                }
+                if (offset < total) {
+                    // one chunk per task, so queued requests on the network thread go in between
+                    resubmit();
+                    return;
+                }
+            }
+
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.d(Statistical.TAG, "Picture uploaded: " + pending.optString(SOURCE_KEY));
+            }
+            deleteTemporaryFile(pending);
+            discardPending(store, pending);
+        } catch (Exception e) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Got exception while uploading picture", e);
+            }
+        }
+    }
+
+    /**
+     * Downsamples and re-encodes the source picture if it exceeds the configured limits and
+     * records the file to upload in the pending state.
+     * @return false if the source picture can no longer be read
+     */
+    private boolean prepare(final JSONObject pending) throws JSONException, IOException {
+        final File source = new File(pending.getString(SOURCE_KEY));
+        if (!source.isFile()) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Provided file " + source + " can not be opened");
+            }
+            return false;
+        }
+
+        final int maxDimension = maxDimension_;
+        final int maxBytes = maxBytes_;
+        File file = source;
+        String type = URLConnection.guessContentTypeFromName(source.getName());
+        boolean temporary = false;
+
+        final BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(source.getPath(), bounds);
+        final Context context = connectionQueue_.getContext();
+        if (context != null && bounds.outWidth > 0 && bounds.outHeight > 0 && (Math.max(bounds.outWidth, bounds.outHeight) > maxDimension || source.length() > maxBytes)) {
+            final byte[] encoded = downsample(source, bounds, maxDimension, maxBytes);
+            if (encoded != null) {
+                file = new File(context.getCacheDir(), "statistical_picture_" + pending.getString(ID_KEY) + ".jpg");
+                final FileOutputStream out = new FileOutputStream(file);
+                try {
+                    out.write(encoded);
+                } finally {
+                    out.close();
+                }
+                type = "image/jpeg";
+                temporary = true;
+            }
+        }
+
+        pending.put(FILE_KEY, file.getPath());
+        pending.put(TYPE_KEY, type == null ? "application/octet-stream" : type);
+        pending.put(TOTAL_KEY, file.length());
+        pending.put(OFFSET_KEY, 0);
+        pending.put(TEMPORARY_KEY, temporary);
+        return true;
+    }
+
+    /**
+     * 压缩图片
+     * Decodes the picture at a reduced sample size, scales it to fit maxDimension and
+     * encodes it as JPEG, lowering the quality until the result fits maxBytes.
+     * @return the encoded picture, or null if it cannot be decoded
+     */
+    static byte[] downsample(final File source, final BitmapFactory.Options bounds, final int maxDimension, final int maxBytes) {
+        int sampleSize = 1;
+        while (Math.max(bounds.outWidth, bounds.outHeight) / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2;
+        }
+
+        Bitmap bitmap;
+        try {
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            bitmap = BitmapFactory.decodeFile(source.getPath(), options);
+            if (bitmap == null) {
+                return null;
+            }
+
+            final int largest = Math.max(bitmap.getWidth(), bitmap.getHeight());
+            if (largest > maxDimension) {
+                final float scale = (float) maxDimension / largest;
+                final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.round(bitmap.getWidth() * scale), Math.round(bitmap.getHeight() * scale), true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                    bitmap = scaled;
+                }
+            }
+        } catch (OutOfMemoryError e) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Not enough memory to downsample picture, uploading the original");
+            }
+            return null;
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(maxBytes);
+        try {
+            int quality = INITIAL_JPEG_QUALITY;
+            while (true) {
+                out.reset();
+                bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+                if (out.size() <= maxBytes || quality <= MIN_JPEG_QUALITY) {
+                    break;
+                }
+                quality -= 10;
+            }
+        } finally {
+            bitmap.recycle();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Sends one chunk of the file starting at offset.
+     * @return the offset acknowledged by the server, -1 if the chunk was not accepted, or
+     *         CHUNKS_UNSUPPORTED if the server doesn't know the chunk protocol
+     */
+    private long sendChunk(final File file, final JSONObject pending, final long offset, final long total, final String deviceId) throws IOException, JSONException {
+        final int length = (int) Math.min(CHUNK_SIZE, total - offset);
+        final String serverURL = connectionQueue_.getEndpointSelector().current();
+        final String urlStr = serverURL + "/a?app_key=" + connectionQueue_.getAppKey()
+                + "&timestamp=" + Statistical.currentTimestamp()
+                + "&device_id=" + deviceId
+                + "&picture_upload=" + pending.getString(ID_KEY)
+                + "&content_type=" + URLEncoder.encode(pending.getString(TYPE_KEY), "UTF-8")
+                + "&offset=" + offset
+                + "&total=" + total;
+
+        final String networkType = connectionQueue_.getUploadScheduler().getNetworkType();
+        final long start = System.nanoTime();
+        final HttpURLConnection conn = openConnection(new URL(urlStr), networkType, length);
+        InputStream responseStream = null;
+        try {
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setFixedLengthStreamingMode(length);
+            conn.setRequestProperty("Content-Type", "application/octet-stream");
+            conn.setRequestProperty("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + total);
+
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                final FileChannel source = in.getChannel();
+                final WritableByteChannel target = Channels.newChannel(conn.getOutputStream());
+                long sent = 0;
+                while (sent < length) {
+                    final long transferred = source.transferTo(offset + sent, length - sent, target);
+                    if (transferred <= 0) {
+                        break;
+                    }
+                    sent += transferred;
+                }
+                target.close();
+            } finally {
+                in.close();
+            }
+            final long sentAt = System.nanoTime();
+
+            final int responseCode = conn.getResponseCode();
+            if (offset == 0 && (responseCode == 400 || responseCode == 404 || responseCode == 405 || responseCode == 501)) {
+                return CHUNKS_UNSUPPORTED;
+            }
+            if (responseCode < 200 || responseCode >= 300) {
+                if (Statistical.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Statistical.TAG, "HTTP error response code was " + responseCode + " from uploading picture chunk at " + offset);
+                }
+                return -1;
+            }
+
+            responseStream = new BufferedInputStream(conn.getInputStream());
+            final ByteArrayOutputStream responseData = new ByteArrayOutputStream(64);
+            final byte[] buffer = new byte[256];
+            int read;
+            while ((read = responseStream.read(buffer)) != -1) {
+                responseData.write(buffer, 0, read);
+            }
+
+            final long receivedAt = System.nanoTime();
+            connectionQueue_.getTrafficMeter().record(networkType, urlStr.length() + length, responseData.size());
+            connectionQueue_.getNetworkEstimator().record(networkType, (sentAt - start) / 1000000, (receivedAt - sentAt) / 1000000, length + responseData.size());
+
+            final String response = responseData.toString("UTF-8");
+            final JSONObject responseDict;
+            try {
+                responseDict = new JSONObject(response);
+            } catch (JSONException e) {
+                if (Statistical.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Statistical.TAG, "Unexpected response from server for picture chunk: " + response);
+                }
+                return -1;
+            }
+            if (!responseDict.optString("result").equalsIgnoreCase("success")) {
+                if (Statistical.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Statistical.TAG, "Response from server did not report success for picture chunk, it was: " + response);
+                }
+                return -1;
+            }
+            if (!responseDict.has("offset")) {
+                // only a server that never acknowledged a chunk can be one without chunk support
+                return offset == 0 ? CHUNKS_UNSUPPORTED : -1;
+            }
+            // the server is the source of truth for how much it has stored
+            final long acknowledged = responseDict.optLong("offset", -1);
+            return acknowledged < 0 || acknowledged > total ? -1 : acknowledged;
+        } finally {
+            if (responseStream != null) {
+                try { responseStream.close(); } catch (IOException ignored) {}
+            }
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * Sends the whole file as a multipart user_details request, for servers without chunk
+     * support.
+     * @return true if the server accepted the picture
+     */
+    private boolean sendMultipart(final File file, final JSONObject pending, final String deviceId) throws IOException, JSONException {
+        final String serverURL = connectionQueue_.getEndpointSelector().current();
+        final String urlStr = serverURL + "/a?app_key=" + connectionQueue_.getAppKey()
+                + "&timestamp=" + Statistical.currentTimestamp()
+                + "&device_id=" + deviceId
+                + "&user_details";
+        final String boundary = Long.toHexString(System.currentTimeMillis());
+        final String source = new File(pending.getString(SOURCE_KEY)).getName();
+        final byte[] head = ("--" + boundary + CRLF
+                + "Content-Disposition: form-data; name=\"binaryFile\"; filename=\"" + source + "\"" + CRLF
+                + "Content-Type: " + pending.getString(TYPE_KEY) + CRLF
+                + "Content-Transfer-Encoding: binary" + CRLF + CRLF).getBytes("UTF-8");
+        final byte[] tail = (CRLF + "--" + boundary + "--" + CRLF).getBytes("UTF-8");
+        final long length = head.length + file.length() + tail.length;
+
+        final String networkType = connectionQueue_.getUploadScheduler().getNetworkType();
+        final long start = System.nanoTime();
+        final HttpURLConnection conn = openConnection(new URL(urlStr), networkType, length);
+        InputStream responseStream = null;
+        try {
+            conn.setDoOutput(true);
+            conn.setRequestMethod("POST");
+            conn.setFixedLengthStreamingMode((int) length);
+            conn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
+
+            final OutputStream out = conn.getOutputStream();
+            out.write(head);
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                final byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+            out.write(tail);
+            out.close();
+            final long sentAt = System.nanoTime();
+
+            final int responseCode = conn.getResponseCode();
+            if (responseCode < 200 || responseCode >= 300) {
+                if (Statistical.sharedInstance().isLoggingEnabled()) {
+                    Log.w(Statistical.TAG, "HTTP error response code was " + responseCode + " from uploading picture");
+                }
+                return false;
+            }
+            responseStream = new BufferedInputStream(conn.getInputStream());
+            final ByteArrayOutputStream responseData = new ByteArrayOutputStream(64);
+            final byte[] buffer = new byte[256];
+            int read;
+            while ((read = responseStream.read(buffer)) != -1) {
+                responseData.write(buffer, 0, read);
+            }
+
+            final long receivedAt = System.nanoTime();
+            connectionQueue_.getTrafficMeter().record(networkType, urlStr.length() + length, responseData.size());
+            connectionQueue_.getNetworkEstimator().record(networkType, (sentAt - start) / 1000000, (receivedAt - sentAt) / 1000000, length + responseData.size());
+
+            final String response = responseData.toString("UTF-8");
+            try {
+                if (new JSONObject(response).optString("result").equalsIgnoreCase("success")) {
+                    return true;
+                }
+            } catch (JSONException ignored) {
+                // reported below
+            }
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Response from server did not report success for picture, it was: " + response);
+            }
+            return false;
+        } finally {
+            if (responseStream != null) {
+                try { responseStream.close(); } catch (IOException ignored) {}
+            }
+            conn.disconnect();
+        }
+    }
+
+    private HttpURLConnection openConnection(final URL url, final String networkType, final long requestBytes) throws IOException {
+        final HttpURLConnection conn;
+        final SSLSocketFactory sslSocketFactory = connectionQueue_.getSSLSocketFactory();
+        if (Statistical.publicKeyPinCertificates == null || sslSocketFactory == null) {
+            conn = (HttpURLConnection) url.openConnection();
+        } else {
+            final HttpsURLConnection c = (HttpsURLConnection) url.openConnection();
+            c.setSSLSocketFactory(sslSocketFactory);
+            conn = c;
+        }
+        final NetworkEstimator networkEstimator = connectionQueue_.getNetworkEstimator();
+        conn.setConnectTimeout(networkEstimator.getConnectTimeout(networkType));
+        conn.setReadTimeout(networkEstimator.getReadTimeout(networkType, requestBytes));
+        conn.setUseCaches(false);
+        conn.setDoInput(true);
+        return conn;
+    }
+
+    private static JSONObject readPending(final StatisticalStore store) {
+        final String pending = store.getPreference(PENDING_PREFERENCE);
+        if (pending != null) {
+            try {
+                return new JSONObject(pending);
+            } catch (JSONException ignored) {
+                store.setPreference(PENDING_PREFERENCE, null);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Persists the upload state unless a newer picture has replaced it in the meantime.
+     */
+    private synchronized boolean savePending(final StatisticalStore store, final JSONObject pending) {
+        final JSONObject current = readPending(store);
+        if (current == null || !current.optString(ID_KEY).equals(pending.optString(ID_KEY))) {
+            return false;
+        }
+        store.setPreference(PENDING_PREFERENCE, pending.toString());
+        return true;
+    }
+
+    private synchronized void discardPending(final StatisticalStore store, final JSONObject pending) {
+        final JSONObject current = readPending(store);
+        if (current != null && current.optString(ID_KEY).equals(pending.optString(ID_KEY))) {
+            store.setPreference(PENDING_PREFERENCE, null);
+        }
+    }
+
+    private static void deleteTemporaryFile(final JSONObject pending) {
+        if (pending != null && pending.optBoolean(TEMPORARY_KEY, false)) {
+            final String file = pending.optString(FILE_KEY, null);
+            if (file != null) {
+                new File(file).delete();
+            }
+        }
+    }
+
+    // for unit testing
+    int getMaxDimension() {
+        return maxDimension_;
+    }
+
+    int getMaxBytes() {
+        return maxBytes_;
+    }
+}
@@ -0,0 +1,264 @@
+package com.statistical.android.sdk;
+
+import android.os.Build;
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.URLEncoder;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 资源采样
+ * Samples the process's resource usage at a fixed interval while a session is active:
+ * CPU usage since the previous sample, Java heap, native heap, garbage collections and
+ * their time since the previous sample, and the number of threads. The samples are
+ * aggregated into histograms for the session and for the current view, as
+ * min/max/avg/p95. The aggregates are cumulative for the whole session: every session
+ * update that follows new samples carries the running aggregates, which replace the
+ * previous ones on the server, and session end carries the final ones and starts over.
+ * How long each sample took is aggregated as well, as "sampler_us".
+ */
+class ResourceSampler {
+    /**
+     * 默认采样间隔
+     */
+    static final long DEFAULT_INTERVAL_IN_SECONDS = 10;
+    /**
+     * 每个会话最多单独汇总的视图数
+     */
+    static final int MAX_VIEWS = 10;
+
+    static final String CPU = "cpu_pct";
+    static final String HEAP = "heap_kb";
+    static final String NATIVE_HEAP = "native_heap_kb";
+    static final String GC_COUNT = "gc_count";
+    static final String GC_TIME = "gc_ms";
+    static final String THREADS = "threads";
+    static final String SAMPLER = "sampler_us";
+    private static final String[] METRICS = {CPU, HEAP, NATIVE_HEAP, GC_COUNT, GC_TIME, THREADS};
+    // Debug.getRuntimeStat(String), looked up on first use
+    private static volatile Method getRuntimeStat_;
+
+    /**
+     * Histograms of one scope, in the order of METRICS.
+     */
+    private static final class Aggregate {
+        final Histogram[] histograms = new Histogram[METRICS.length];
+
+        Aggregate() {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new Histogram();
+            }
+        }
+
+        void add(final long[] sample) {
+            for (int i = 0; i < histograms.length; i++) {
+                if (sample[i] >= 0) {
+                    histograms[i].add(sample[i]);
+                }
+            }
+        }
+
+        JSONObject toJSON() throws JSONException {
+            final JSONObject json = new JSONObject();
+            for (int i = 0; i < histograms.length; i++) {
+                if (histograms[i].getCount() > 0) {
+                    json.put(METRICS[i], histograms[i].toJSON());
+                }
+            }
+            return json;
+        }
+    }
+
+    private final ConnectionQueue connectionQueue_;
+    private final Runtime runtime_ = Runtime.getRuntime();
+    private final long[] sample_ = new long[METRICS.length];
+    private Aggregate session_ = new Aggregate();
+    private Map<String, Aggregate> views_ = new LinkedHashMap<String, Aggregate>();
+    private final Histogram overhead_ = new Histogram();
+    // samples in the aggregates when they were last sent
+    private long sentCount_;
+    private String view_;
+    private long intervalInSeconds_ = DEFAULT_INTERVAL_IN_SECONDS;
+    private boolean enabled_;
+    private ScheduledFuture<?> future_;
+    private long lastCpuMillis_ = -1;
+    private long lastUptimeMillis_;
+    private long lastGcCount_ = -1;
+    private long lastGcMillis_ = -1;
+    private final Runnable sampleTask_ = new Runnable() {
+        @Override
+        public void run() {
+            sample();
+        }
+    };
+
+    ResourceSampler(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 开启或关闭采样，开启后在会话期间采样
+     */
+    synchronized void setEnabled(final boolean enabled, final long intervalInSeconds) {
+        enabled_ = enabled;
+        intervalInSeconds_ = intervalInSeconds;
+        if (future_ != null) {
+            stop();
+            start();
+        }
+    }
+
+    /**
+     * 会话开始时调用
+     */
+    synchronized void start() {
+        if (!enabled_ || future_ != null) {
+            return;
+        }
+        lastCpuMillis_ = -1;
+        lastGcCount_ = -1;
+        lastGcMillis_ = -1;
+        future_ = connectionQueue_.getScheduler().scheduleWithFixedDelay(sampleTask_, 0, intervalInSeconds_, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 会话结束时调用，已采集的数据保留到下次发送
+     */
+    synchronized void stop() {
+        if (future_ != null) {
+            future_.cancel(false);
+            future_ = null;
+        }
+    }
+
+    /**
+     * 设置当前视图，null表示没有视图
+     */
+    synchronized void setView(final String view) {
+        view_ = view;
+    }
+
+    /**
+     * 结束视图，如果它是当前视图
+     */
+    synchronized void endView(final String view) {
+        if (view != null && view.equals(view_)) {
+            view_ = null;
+        }
+    }
+
+    private synchronized void sample() {
+        final long start = System.nanoTime();
+        final long uptime = SystemClock.uptimeMillis();
+        final long cpu = Process.getElapsedCpuTime();
+        sample_[0] = lastCpuMillis_ < 0 || uptime <= lastUptimeMillis_ ? -1 : (cpu - lastCpuMillis_) * 100 / (uptime - lastUptimeMillis_);
+        lastCpuMillis_ = cpu;
+        lastUptimeMillis_ = uptime;
+        sample_[1] = (runtime_.totalMemory() - runtime_.freeMemory()) / 1024;
+        sample_[2] = Debug.getNativeHeapAllocatedSize() / 1024;
+        final long gcCount = runtimeStat("art.gc.gc-count");
+        final long gcMillis = runtimeStat("art.gc.gc-time");
+        sample_[3] = gcCount < 0 || lastGcCount_ < 0 ? -1 : gcCount - lastGcCount_;
+        sample_[4] = gcMillis < 0 || lastGcMillis_ < 0 ? -1 : gcMillis - lastGcMillis_;
+        lastGcCount_ = gcCount;
+        lastGcMillis_ = gcMillis;
+        sample_[5] = threadCount();
+
+        session_.add(sample_);
+        if (view_ != null) {
+            Aggregate view = views_.get(view_);
+            if (view == null && views_.size() < MAX_VIEWS) {
+                view = new Aggregate();
+                views_.put(view_, view);
+            }
+            if (view != null) {
+                view.add(sample_);
+            }
+        }
+        overhead_.add((System.nanoTime() - start) / 1000);
+    }
+
+    /**
+     * 取出会话至今的汇总数据，会话结束时重新开始汇总
+     * @param sessionEnded true for session end, after which the aggregates start over
+     * @return URL encoded JSON {"session": {metric: stats}, "views": {view: {metric: stats}}},
+     *         or null if there are no samples, or none since the last session update
+     */
+    synchronized String drain(final boolean sessionEnded) {
+        final long count = overhead_.getCount();
+        if (count == 0 || (count == sentCount_ && !sessionEnded)) {
+            return null;
+        }
+        String result = null;
+        try {
+            final JSONObject session = session_.toJSON();
+            session.put(SAMPLER, overhead_.toJSON());
+            final JSONObject json = new JSONObject();
+            json.put("session", session);
+            if (!views_.isEmpty()) {
+                final JSONObject views = new JSONObject();
+                for (Map.Entry<String, Aggregate> view : views_.entrySet()) {
+                    views.put(view.getKey(), view.getValue().toJSON());
+                }
+                json.put("views", views);
+            }
+            result = URLEncoder.encode(json.toString(), "UTF-8");
+        } catch (JSONException e) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Can't encode resource samples", e);
+            }
+        } catch (UnsupportedEncodingException ignored) {
+            // should never happen because Android guarantees UTF-8 support
+        }
+        if (sessionEnded) {
+            session_ = new Aggregate();
+            views_ = new LinkedHashMap<String, Aggregate>();
+            overhead_.reset();
+            sentCount_ = 0;
+        } else {
+            sentCount_ = count;
+        }
+        return result;
+    }
+
+    /**
+     * Reads a runtime statistic, available since Android 6.0. Debug.getRuntimeStat is
+     * looked up by reflection as it is newer than the SDK this library builds against.
+     * @return the value, or -1 if it isn't available
+     */
+    private static long runtimeStat(final String name) {
+        if (Build.VERSION.SDK_INT < 23) {
+            return -1;
+        }
+        try {
+            if (getRuntimeStat_ == null) {
+                getRuntimeStat_ = Debug.class.getMethod("getRuntimeStat", String.class);
+            }
+            return Long.parseLong((String) getRuntimeStat_.invoke(null, name));
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static long threadCount() {
+        final String[] tasks = new File("/proc/self/task").list();
+        return tasks == null ? Thread.activeCount() : tasks.length;
+    }
+
+    // for unit testing
+    synchronized boolean isSampling() {
+        return future_ != null;
+    }
+}
@@ -0,0 +1,207 @@
+package com.statistical.android.sdk;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 会话状态机
+ * Tracks whether a session is in the foreground, in its background grace period or
+ * over. When the last activity stops, the session isn't ended right away: it waits for
+ * the grace period and, if an activity starts again before that, continues as the same
+ * session without an end_session/begin_session pair. Durations are measured with
+ * SystemClock.elapsedRealtime() and the unsent remainder below a second is carried
+ * over. The state is saved on every transition, so a session of a process that died is
+ * ended, or resumed within the grace period, by the next process.
+ */
+class SessionManager {
+    /**
+     * 默认后台宽限期
+     */
+    static final long DEFAULT_GRACE_PERIOD_IN_SECONDS = 10;
+    static final String STATE_PREFERENCE = "SESSION_STATE";
+
+    static final int NONE = 0;
+    static final int FOREGROUND = 1;
+    static final int GRACE = 2;
+
+    private static final String STATE_KEY = "state";
+    private static final String UNSENT_KEY = "unsent_ms";
+    private static final String SINCE_KEY = "since";
+    private static final String SINCE_WALL_KEY = "since_wall";
+
+    private final ConnectionQueue connectionQueue_;
+    private int state_ = NONE;
+    private long unsentMillis_;
+    // elapsedRealtime() when the session went to the foreground or into the grace period
+    private long since_;
+    private long gracePeriodMillis_ = DEFAULT_GRACE_PERIOD_IN_SECONDS * 1000;
+    private ScheduledFuture<?> endFuture_;
+
+    SessionManager(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    synchronized void setGracePeriod(final long seconds) {
+        gracePeriodMillis_ = seconds * 1000;
+    }
+
+    synchronized int getState() {
+        return state_;
+    }
+
+    /**
+     * 进入前台
+     * @return true if the session in its grace period continues, false if a new session
+     *         has to be begun
+     */
+    synchronized boolean foreground() {
+        cancelEnd();
+        final boolean resumed = state_ == GRACE;
+        if (!resumed) {
+            unsentMillis_ = 0;
+        }
+        state_ = FOREGROUND;
+        since_ = SystemClock.elapsedRealtime();
+        save();
+        return resumed;
+    }
+
+    /**
+     * 进入后台，宽限期后执行endTask
+     * @param endTask ends the session if it is still in the grace period, see endIfInGrace
+     * @return true if there is no grace period and the caller has to end the session now
+     */
+    synchronized boolean background(final Runnable endTask) {
+        if (state_ != FOREGROUND) {
+            return false;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        unsentMillis_ += now - since_;
+        state_ = GRACE;
+        since_ = now;
+        save();
+        if (gracePeriodMillis_ <= 0) {
+            return true;
+        }
+        scheduleEnd(endTask, gracePeriodMillis_);
+        return false;
+    }
+
+    /**
+     * 宽限期结束
+     * @return true if the session was still in its grace period and is now over
+     */
+    synchronized boolean endIfInGrace() {
+        if (state_ != GRACE) {
+            return false;
+        }
+        state_ = NONE;
+        endFuture_ = null;
+        save();
+        return true;
+    }
+
+    /**
+     * 取出尚未发送的会话时长，不足一秒的部分留到下次
+     */
+    synchronized int takeUnsentSeconds() {
+        if (state_ == FOREGROUND) {
+            final long now = SystemClock.elapsedRealtime();
+            unsentMillis_ += now - since_;
+            since_ = now;
+        }
+        final long seconds = unsentMillis_ / 1000;
+        unsentMillis_ -= seconds * 1000;
+        save();
+        return (int) seconds;
+    }
+
+    /**
+     * 恢复上次进程的会话
+     * Picks up the session a previous process left behind. A session in a grace period
+     * that hasn't run out is kept in the grace period for the rest of it; any other
+     * session is over.
+     * @param endTask ends the kept session when its grace period runs out
+     * @return the unsent duration in seconds of a session the caller has to end, -1 if
+     *         there is none
+     */
+    synchronized int restore(final StatisticalStore store, final Runnable endTask) {
+        if (state_ != NONE) {
+            return -1;
+        }
+        final String saved = store.getPreference(STATE_PREFERENCE);
+        if (saved == null) {
+            return -1;
+        }
+        try {
+            final JSONObject json = new JSONObject(saved);
+            final int state = json.getInt(STATE_KEY);
+            unsentMillis_ = json.optLong(UNSENT_KEY);
+            final long since = json.getLong(SINCE_KEY);
+            final long now = SystemClock.elapsedRealtime();
+            // elapsedRealtime starts over at boot, the wall clock tells whether it did
+            final boolean sameBoot = since <= now && Math.abs((System.currentTimeMillis() - json.getLong(SINCE_WALL_KEY)) - (now - since)) < 60000;
+            if (state == GRACE && sameBoot && now - since < gracePeriodMillis_) {
+                state_ = GRACE;
+                since_ = since;
+                scheduleEnd(endTask, gracePeriodMillis_ - (now - since));
+                return -1;
+            }
+        } catch (JSONException e) {
+            unsentMillis_ = 0;
+        }
+        state_ = NONE;
+        store.setPreference(STATE_PREFERENCE, null);
+        final int seconds = (int) (unsentMillis_ / 1000);
+        unsentMillis_ = 0;
+        return seconds;
+    }
+
+    /**
+     * 取消宽限期并忘记会话，用于halt
+     */
+    synchronized void reset() {
+        cancelEnd();
+        state_ = NONE;
+        unsentMillis_ = 0;
+        save();
+    }
+
+    private void scheduleEnd(final Runnable endTask, final long delayMillis) {
+        cancelEnd();
+        endFuture_ = connectionQueue_.getScheduler().schedule(endTask, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelEnd() {
+        if (endFuture_ != null) {
+            endFuture_.cancel(false);
+            endFuture_ = null;
+        }
+    }
+
+    private void save() {
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store == null) {
+            return;
+        }
+        if (state_ == NONE) {
+            store.setPreference(STATE_PREFERENCE, null);
+            return;
+        }
+        try {
+            final JSONObject json = new JSONObject();
+            json.put(STATE_KEY, state_);
+            json.put(UNSENT_KEY, unsentMillis_);
+            json.put(SINCE_KEY, since_);
+            json.put(SINCE_WALL_KEY, System.currentTimeMillis() - (SystemClock.elapsedRealtime() - since_));
+            store.setPreference(STATE_PREFERENCE, json.toString());
+        } catch (JSONException ignored) {
+            // can't happen when putting numbers
+        }
+    }
+}
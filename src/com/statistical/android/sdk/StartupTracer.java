@@ -0,0 +1,199 @@
+package com.statistical.android.sdk;
+
+import android.app.Activity;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 启动耗时统计
+ * Measures app launches from the first activity start after the app was in the
+ * background to the first frame drawn after it. A launch is cold when it is the first
+ * one of a process that was started for it, warm when the activity was created anew,
+ * and hot when a stopped activity was only started again. Cold launches also report
+ * the process start, the SDK's init and the first activity start on the way. Each
+ * launch becomes a "_app_start" event and the SDK's init a "_sdk_init" event, kept
+ * until the next events flush. Activity callbacks are expected on the main thread.
+ */
+class StartupTracer {
+    static final String APP_START_EVENT = "_app_start";
+    static final String SDK_INIT_EVENT = "_sdk_init";
+    static final String COLD = "cold";
+    static final String WARM = "warm";
+    static final String HOT = "hot";
+    /**
+     * 进程启动后超过此时间才启动Activity，不算冷启动
+     * A process started longer than this before its first activity was started for
+     * something else, e.g. a broadcast, so its first launch counts as warm.
+     */
+    static final long COLD_START_WINDOW_MILLIS = 10000;
+    // USER_HZ on Android kernels
+    private static final long CLOCK_TICKS_PER_SECOND = 100;
+
+    private final List<Event> pending_ = new ArrayList<Event>();
+    // activities that were started, to tell warm from hot launches
+    private final WeakHashMap<Activity, Boolean> startedActivities_ = new WeakHashMap<Activity, Boolean>();
+    private long processStart_ = -1;
+    private long initStart_ = -1;
+    private long initEnd_ = -1;
+    private int startedCount_;
+    private boolean launched_;
+
+    // the launch being measured
+    private String launchType_;
+    private long launchStart_;
+
+    /**
+     * SDK初始化完成时调用，只记录进程中的第一次
+     * @param startElapsed SystemClock.elapsedRealtime() when init was called
+     * @param initNanos how long init took
+     */
+    synchronized void onInit(final long startElapsed, final long initNanos) {
+        if (initStart_ >= 0) {
+            return;
+        }
+        initStart_ = startElapsed;
+        initEnd_ = startElapsed + initNanos / 1000000;
+        processStart_ = readProcessStart();
+
+        final Map<String, String> segments = new HashMap<String, String>();
+        segments.put("dur", String.format(Locale.US, "%.3f", initNanos / 1000000.0));
+        segments.put("main_thread", Boolean.toString(Looper.myLooper() == Looper.getMainLooper()));
+        pending_.add(event(SDK_INIT_EVENT, segments, initNanos / 1000000.0));
+    }
+
+    /**
+     * Activity启动
+     */
+    synchronized void onActivityStarted(final Activity activity) {
+        final boolean startedBefore = startedActivities_.put(activity, Boolean.TRUE) != null;
+        if (startedCount_++ > 0) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        if (!launched_) {
+            launched_ = true;
+            launchType_ = processStart_ >= 0 && now - processStart_ < COLD_START_WINDOW_MILLIS ? COLD : WARM;
+        } else {
+            launchType_ = startedBefore ? HOT : WARM;
+        }
+        launchStart_ = now;
+        awaitFirstFrame(activity);
+    }
+
+    /**
+     * Activity停止
+     */
+    synchronized void onActivityStopped(final Activity activity) {
+        if (startedCount_ > 0) {
+            startedCount_--;
+        }
+    }
+
+    /**
+     * 取出待写入事件队列的事件
+     */
+    synchronized List<Event> drainEvents() {
+        final List<Event> events = new ArrayList<Event>(pending_);
+        pending_.clear();
+        return events;
+    }
+
+    private void awaitFirstFrame(final Activity activity) {
+        if (activity.getWindow() == null) {
+            return;
+        }
+        final View decorView = activity.getWindow().getDecorView();
+        final Handler handler = new Handler(Looper.getMainLooper());
+        final ViewTreeObserver.OnPreDrawListener listener = new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                final ViewTreeObserver observer = decorView.getViewTreeObserver();
+                if (observer.isAlive()) {
+                    observer.removeOnPreDrawListener(this);
+                }
+                // runs right after this traversal has drawn the frame
+                handler.postAtFrontOfQueue(new Runnable() {
+                    @Override
+                    public void run() {
+                        onFirstFrame(SystemClock.elapsedRealtime());
+                    }
+                });
+                return true;
+            }
+        };
+        decorView.getViewTreeObserver().addOnPreDrawListener(listener);
+    }
+
+    private synchronized void onFirstFrame(final long now) {
+        if (launchType_ == null) {
+            return;
+        }
+        final Map<String, String> segments = new HashMap<String, String>();
+        segments.put("type", launchType_);
+        long start = launchStart_;
+        if (COLD.equals(launchType_)) {
+            if (processStart_ >= 0 && processStart_ <= initStart_) {
+                segments.put("process_to_init", Long.toString(initStart_ - processStart_));
+                start = processStart_;
+            } else {
+                start = initStart_;
+            }
+            segments.put("init", Long.toString(initEnd_ - initStart_));
+            segments.put("init_to_activity", Long.toString(Math.max(0, launchStart_ - initEnd_)));
+        }
+        segments.put("activity_to_frame", Long.toString(now - launchStart_));
+        segments.put("dur", Long.toString(now - start));
+        pending_.add(event(APP_START_EVENT, segments, now - start));
+        launchType_ = null;
+    }
+
+    private static Event event(final String key, final Map<String, String> segments, final double sum) {
+        final Event event = new Event();
+        event.key = key;
+        event.segmentation = segments;
+        event.count = 1;
+        event.sum = sum;
+        event.timestamp = Statistical.currentTimestamp();
+        event.hour = Statistical.currentHour();
+        event.dow = Statistical.currentDayOfWeek();
+        return event;
+    }
+
+    /**
+     * Reads the process start from /proc/self/stat, in SystemClock.elapsedRealtime() time.
+     * @return the start, or -1 if it can't be read
+     */
+    private static long readProcessStart() {
+        RandomAccessFile reader = null;
+        try {
+            reader = new RandomAccessFile("/proc/self/stat", "r");
+            final String stat = reader.readLine();
+            // the command name may contain spaces, fields are counted after its closing parenthesis
+            final String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            // starttime is field 22, the 20th after the command name
+            return Long.parseLong(fields[19]) * 1000 / CLOCK_TICKS_PER_SECOND;
+        } catch (Exception e) {
+            return -1;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+}
@@ -3,18 +3,18 @@ package com.statistical.android.sdk;
 
 import android.app.Activity;
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class Statistical {
@@ -32,10 +32,6 @@ public class Statistical {
 	 */
 	public static final String TAG = "Statistical";
 
-	/**
-	 * 定义提交服务器前本地可以缓存自定义事件的数量。 
-	 */
-	private static final int EVENT_QUEUE_SIZE_THRESHOLD = 10;
 	/**
 	 * 调用onTimer()的时间间隔 
 	 */
@@ -66,9 +62,23 @@ public class Statistical {
 	}
 
 	private ConnectionQueue connectionQueue_;
-	private ScheduledExecutorService timerService_;
+	private final StatisticalScheduler scheduler_ = new StatisticalScheduler();
+	private ScheduledFuture<?> timerFuture_;
+	private long lastFlushTime_;
+	private long lastSessionUpdateTime_;
+	private final Runnable heartbeat_ = new Runnable() {
+		@Override
+		public void run() {
+			onTimer();
+		}
+	};
+	private final Runnable gracePeriodEnded_ = new Runnable() {
+		@Override
+		public void run() {
+			onGracePeriodEnded();
+		}
+	};
 	private EventQueue eventQueue_;
-	private long prevSessionDurationStartTime_;
 	private int activityCount_;
 	private boolean disableUpdateSessionRequests_;
 	private boolean enableLogging_;
@@ -79,8 +89,8 @@ public class Statistical {
 
 	// private String lastView = null;
 	// private int lastViewStart = 0;
-	private boolean firstView = true;
 	private boolean autoViewTracker = false;
+	private boolean automaticLifecycleTracking_;
 
 	/**
 	 * 
@@ -91,19 +101,35 @@ public class Statistical {
 	}
 
 	/**
-	 * Constructs a Countly object. Creates a new ConnectionQueue and
-	 * initializes the session timer.
+	 * Constructs a Countly object. Creates a new ConnectionQueue that runs on
+	 * the SDK scheduler.
 	 */
 	Statistical() {
 		connectionQueue_ = new ConnectionQueue();
+		connectionQueue_.setScheduler(scheduler_);
 		Statistical.userData = new UserData(connectionQueue_);
-		timerService_ = Executors.newSingleThreadScheduledExecutor();
-		timerService_.scheduleWithFixedDelay(new Runnable() {
-			@Override
-			public void run() {
-				onTimer();
-			}
-		}, TIMER_DELAY_IN_SECONDS, TIMER_DELAY_IN_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * 安排下一次心跳 Schedules onTimer() for the next deadline, which is
+	 * TIMER_DELAY_IN_SECONDS after the last session update or after the last
+	 * time events were flushed, whichever is earlier. Replaces a heartbeat that
+	 * is already scheduled.
+	 */
+	private void scheduleHeartbeat() {
+		cancelHeartbeat();
+		final long deadline = Math.min(lastFlushTime_, lastSessionUpdateTime_) + TimeUnit.SECONDS.toNanos(TIMER_DELAY_IN_SECONDS);
+		timerFuture_ = scheduler_.schedule(heartbeat_, Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * 取消心跳
+	 */
+	private void cancelHeartbeat() {
+		if (timerFuture_ != null) {
+			timerFuture_.cancel(false);
+			timerFuture_ = null;
+		}
 	}
 
 	/**
@@ -188,6 +214,8 @@ public class Statistical {
 	 *             during the same application instance
 	 */
 	public synchronized Statistical init(final Context context, final String serverURL, final String appKey, final String deviceID, DeviceId.Type idMode, Statistical.CountlyMode mode) {
+		final long initStartElapsed = SystemClock.elapsedRealtime();
+		final long initStartNanos = System.nanoTime();
 		if (context == null) {
 			throw new IllegalArgumentException("valid context is required");
 		}
@@ -245,11 +273,27 @@ public class Statistical {
 			connectionQueue_.setDeviceId(deviceIdInstance);
 
 			eventQueue_ = new EventQueue(countlyStore);
+			connectionQueue_.getViewTracker().restore(countlyStore);
 		}
 		context_ = context;
 		// context is allowed to be changed on the second init call
 		connectionQueue_.setContext(context);
 		connectionQueue_.setMode(mode);
+		connectionQueue_.getNetworkState().start(context);
+		connectionQueue_.getUploadScheduler().start(context);
+		connectionQueue_.getDeviceSnapshot().start(context);
+		connectionQueue_.getCrashContext().refreshAsync();
+		connectionQueue_.getCrashJournal().open(context);
+		if (automaticLifecycleTracking_) {
+			startLifecycleTracking(context);
+		}
+		// a session the previous process left behind
+		final int unsentSeconds = connectionQueue_.getSessionManager().restore(connectionQueue_.getCountlyStore(), gracePeriodEnded_);
+		if (unsentSeconds >= 0) {
+			connectionQueue_.endSession(unsentSeconds);
+		}
+
+		connectionQueue_.getStartupTracer().onInit(initStartElapsed, System.nanoTime() - initStartNanos);
 
 		return this;
 	}
@@ -329,6 +373,23 @@ public class Statistical {
 	 */
 	public synchronized void halt() {
 		eventQueue_ = null;
+		connectionQueue_.getNetworkState().stop();
+		connectionQueue_.getUploadScheduler().stop();
+		connectionQueue_.getDeviceSnapshot().stop();
+		connectionQueue_.getCrashContext().setEnabled(false);
+		connectionQueue_.getCrashContext().stop();
+		connectionQueue_.getMainThreadWatchdog().setEnabled(false, MainThreadWatchdog.DEFAULT_THRESHOLD_IN_MILLIS);
+		connectionQueue_.getMainThreadWatchdog().stop();
+		connectionQueue_.getResourceSampler().stop();
+		connectionQueue_.getLifecycleTracker().stop();
+		connectionQueue_.getSessionManager().reset();
+		connectionQueue_.getPictureUploader().clear();
+		connectionQueue_.getEndpointSelector().clear();
+		connectionQueue_.getTrafficMeter().clear();
+		connectionQueue_.getMetricsFingerprint().clear();
+		connectionQueue_.getCrashGrouper().clear();
+		connectionQueue_.getCrashJournal().clear(connectionQueue_.getContext());
+		connectionQueue_.getViewTracker().clear();
 		final StatisticalStore countlyStore = connectionQueue_.getCountlyStore();
 		if (countlyStore != null) {
 			countlyStore.clear();
@@ -337,12 +398,13 @@ public class Statistical {
 		connectionQueue_.setServerURL(null);
 		connectionQueue_.setAppKey(null);
 		connectionQueue_.setCountlyStore(null);
-		prevSessionDurationStartTime_ = 0;
 		activityCount_ = 0;
+		cancelHeartbeat();
+		scheduler_.shutdown();
 	}
 
 	/**
-	 * 通知Countly SDK Activity已启动，必须在应用的每个Activity的onStart()中调用
+	 * 通知Countly SDK Activity已启动，必须在应用的每个Activity的onStart()中调用。开启自动跟踪后此方法不起作用
 	 * 
 	 * @throws IllegalStateException
 	 *             if Countly SDK has not been initialized
@@ -351,6 +413,23 @@ public class Statistical {
 		if (eventQueue_ == null) {
 			throw new IllegalStateException("init must be called before onStart");
 		}
+		if (connectionQueue_.getLifecycleTracker().isStarted()) {
+			return;
+		}
+		connectionQueue_.getStartupTracer().onActivityStarted(activity);
+		onActivityStarted(activity.getClass().getName(), System.nanoTime());
+	}
+
+	/**
+	 * Activity启动，由onStart(Activity)或自动跟踪调用
+	 * 
+	 * @param nanos
+	 *            System.nanoTime() when the activity started
+	 */
+	synchronized void onActivityStarted(final String activityName, final long nanos) {
+		if (eventQueue_ == null) {
+			return;
+		}
 
 		++activityCount_;
 		if (activityCount_ == 1) {
@@ -369,10 +448,7 @@ public class Statistical {
 
 		CrashDetails.inForeground();
 
-		if (autoViewTracker) {
-			recordView(activity.getClass().getName());
-			// recordActivity(activity.getClass().getName());
-		}
+		onViewStarted(activityName, nanos);
 	}
 
 	/**
@@ -384,25 +460,42 @@ public class Statistical {
 		if (eventQueue_ == null) {
 			throw new IllegalStateException("init must be called before onStart");
 		}
-		if (autoViewTracker) {
-			recordView(viewName);
+		onViewStarted(viewName, System.nanoTime());
+	}
+
+	/**
+	 * 视图开始，开启了视图跟踪时记录
+	 */
+	synchronized void onViewStarted(final String viewName, final long nanos) {
+		if (eventQueue_ != null && autoViewTracker) {
+			connectionQueue_.getViewTracker().startView(viewName, nanos);
+			sendEventsIfNeeded();
 		}
 	}
 
 	/**
+	 * 在第一个Activity启动时调用，开始会话或继续宽限期内的会话，并启动心跳
 	 */
 	void onStartHelper() {
-		prevSessionDurationStartTime_ = System.nanoTime();
-		StatisticalStore countlyStore = connectionQueue_.getCountlyStore();
-		if (countlyStore != null) {
-			countlyStore.setBeginSession(Statistical.currentTimestamp());
+		if (!connectionQueue_.getSessionManager().foreground()) {
+			StatisticalStore countlyStore = connectionQueue_.getCountlyStore();
+			if (countlyStore != null) {
+				countlyStore.setBeginSession(Statistical.currentTimestamp());
+			}
+			connectionQueue_.beginSession();
 		}
-		connectionQueue_.beginSession();
-
+		connectionQueue_.getResourceSampler().start();
+		connectionQueue_.getMainThreadWatchdog().start();
+		connectionQueue_.getCrashContext().start();
+		connectionQueue_.getViewTracker().resume();
+
+		lastFlushTime_ = System.nanoTime();
+		lastSessionUpdateTime_ = lastFlushTime_;
+		scheduleHeartbeat();
 	}
 
 	/**
-	 * 通知Countly SDK Activity已停止。必须在每个Activity的onStop()中调用 T
+	 * 通知Countly SDK Activity已停止。必须在每个Activity的onStop()中调用。开启自动跟踪后此方法不起作用
 	 * @throws IllegalStateException
 	 *             if Countly SDK has not been initialized, or if unbalanced
 	 *             calls to onStart/onStop are detected
@@ -411,12 +504,29 @@ public class Statistical {
 		if (eventQueue_ == null) {
 			throw new IllegalStateException("init must be called before onStop");
 		}
+		if (connectionQueue_.getLifecycleTracker().isStarted()) {
+			return;
+		}
 		if (activityCount_ == 0) {
 			throw new IllegalStateException("must call onStart before onStop");
 		}
+		connectionQueue_.getStartupTracer().onActivityStopped(activity);
+		onActivityStopped(activity.getClass().getName(), System.nanoTime());
+	}
+
+	/**
+	 * Activity停止，由onStop(Activity)或自动跟踪调用。自动跟踪开启前已启动的Activity停止时忽略
+	 * 
+	 * @param nanos
+	 *            System.nanoTime() when the activity stopped
+	 */
+	synchronized void onActivityStopped(final String activityName, final long nanos) {
+		if (eventQueue_ == null || activityCount_ == 0) {
+			return;
+		}
 
 		--activityCount_;
-		reportViewDuration(activity.getClass().getName());
+		onViewStopped(activityName, nanos);
 		if (activityCount_ == 0) {
 			onStopHelper();
 		}
@@ -441,17 +551,101 @@ public class Statistical {
 	}
 
 	/**
-	 * 在最后一个Activity退出时调用，向server发送结束事件并发送自定义事件。 
+	 * 视图结束
+	 */
+	synchronized void onViewStopped(final String viewName, final long nanos) {
+		if (eventQueue_ != null) {
+			connectionQueue_.getViewTracker().endView(viewName, nanos);
+			sendEventsIfNeeded();
+		}
+	}
+
+	/**
+	 * Fragment对用户的可见性变化，在后台处理，不占用UI线程
+	 */
+	void onFragmentVisibilityChanged(final String fragmentName, final boolean visible) {
+		connectionQueue_.getLifecycleTracker().post(visible ? LifecycleTracker.FRAGMENT_STARTED : LifecycleTracker.FRAGMENT_STOPPED, fragmentName);
+	}
+
+	/**
+	 * 开启自动跟踪Activity和StatisticalFragment Tracks activities automatically
+	 * through Application.ActivityLifecycleCallbacks, registered once at init,
+	 * so activities no longer call onStart/onStop; calls they still make are
+	 * ignored. Transitions are applied in the background. Also turns on view
+	 * tracking. Call before init, or after init from the first Activity's
+	 * onCreate so that no activity start is missed.
+	 * 
+	 * @return Countly instance for easy method chaining
+	 */
+	public synchronized Statistical enableAutomaticLifecycleTracking() {
+		automaticLifecycleTracking_ = true;
+		autoViewTracker = true;
+		if (context_ != null) {
+			startLifecycleTracking(context_);
+		}
+		return this;
+	}
+
+	private void startLifecycleTracking(final Context context) {
+		if (!connectionQueue_.getLifecycleTracker().start(context) && isLoggingEnabled()) {
+			Log.w(Statistical.TAG, "Automatic lifecycle tracking needs an Application context, call onStart/onStop instead");
+		}
+	}
+
+	/**
+	 * 在最后一个Activity退出时调用，会话进入后台宽限期，宽限期结束后向server发送结束事件并发送自定义事件。
 	 */
 	void onStopHelper() {
-		connectionQueue_.endSession(roundedSecondsSinceLastSessionDurationUpdate());
-		prevSessionDurationStartTime_ = 0;
+		cancelHeartbeat();
+		connectionQueue_.getResourceSampler().stop();
+		connectionQueue_.getMainThreadWatchdog().stop();
+		connectionQueue_.getCrashContext().stop();
+		connectionQueue_.getViewTracker().pause();
+		if (connectionQueue_.getSessionManager().background(gracePeriodEnded_)) {
+			endSession();
+		}
+	}
 
+	/**
+	 * 宽限期结束时调用，没有Activity重新启动则结束会话
+	 */
+	synchronized void onGracePeriodEnded() {
+		if (eventQueue_ != null && connectionQueue_.getSessionManager().endIfInGrace()) {
+			endSession();
+		}
+	}
+
+	private void endSession() {
+		connectionQueue_.endSession(connectionQueue_.getSessionManager().takeUnsentSeconds());
+		flushViewEvents();
+		flushSummaries();
 		if (eventQueue_.size() > 0) {
 			connectionQueue_.recordEvents(eventQueue_.events());
 		}
 	}
 
+	/**
+	 * 设置后台宽限期。最后一个Activity停止后，会话在宽限期内保持，期间有Activity启动则继续同一会话。 Sets
+	 * how long a session survives in the background. When an activity starts
+	 * within this period after the last one stopped, the same session
+	 * continues instead of ending and beginning a new one. The default is 10
+	 * seconds.
+	 * 
+	 * @param seconds
+	 *            grace period in seconds, 0 to end sessions as soon as the
+	 *            last activity stops
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if seconds is negative
+	 */
+	public synchronized Statistical setSessionGracePeriod(final long seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("seconds must not be negative");
+		}
+		connectionQueue_.getSessionManager().setGracePeriod(seconds);
+		return this;
+	}
+
 	/**
 	 * 当GCM注册ID成功时调用，向server发送token（推送使用） .
 	 */
@@ -574,6 +768,118 @@ public class Statistical {
 		sendEventsIfNeeded();
 	}
 
+	/**
+	 * 记录一个应用自己的网络请求 Records an HTTP request made by the app. Requests are
+	 * aggregated per method, host and path, with identifiers in the path
+	 * replaced by ":id" and the query dropped, and sent as one "_network"
+	 * event per endpoint with the heartbeat, carrying latency percentiles in
+	 * milliseconds, counts per status class and the bytes sent and received.
+	 * Can be called from any thread.
+	 * 
+	 * @param method
+	 *            HTTP method, GET if null
+	 * @param url
+	 *            requested URL, required
+	 * @param status
+	 *            HTTP status code, or 0 if the request failed without one
+	 * @param requestBytes
+	 *            bytes sent in the request body, -1 if unknown
+	 * @param responseBytes
+	 *            bytes received in the response body, -1 if unknown
+	 * @param durationMillis
+	 *            time from sending the request to receiving the response
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if url is null or empty or durationMillis is negative
+	 */
+	public Statistical recordNetworkRequest(final String method, final String url, final int status, final long requestBytes, final long responseBytes, final long durationMillis) {
+		if (url == null || url.length() == 0) {
+			throw new IllegalArgumentException("Valid request url is required");
+		}
+		if (durationMillis < 0) {
+			throw new IllegalArgumentException("Request duration cannot be negative");
+		}
+		connectionQueue_.getNetworkTracker().record(method, url, status, requestBytes, responseBytes, durationMillis);
+		return this;
+	}
+
+	/**
+	 * 包装连接以自动记录网络请求 Wraps a connection so that its request is recorded
+	 * as with {@link #recordNetworkRequest}. The request is timed from the
+	 * first connect, getOutputStream, getInputStream or getResponseCode call
+	 * until the response body is read to its end or closed, or the connection
+	 * is disconnected. Use the returned connection in place of the original
+	 * one; HTTPS settings such as the SSLSocketFactory must be set on the
+	 * original connection before wrapping.
+	 * 
+	 * @param connection
+	 *            unconnected connection to trace
+	 * @return connection to use instead of the original one
+	 * @throws IllegalArgumentException
+	 *             if connection is null
+	 */
+	public HttpURLConnection traceConnection(final HttpURLConnection connection) {
+		if (connection == null) {
+			throw new IllegalArgumentException("Valid connection is required");
+		}
+		return new TracedHttpURLConnection(connection, connectionQueue_.getNetworkTracker());
+	}
+
+	/**
+	 * 开始一个自定义跟踪 Starts timing a section of code; call {@link Trace#end()}
+	 * when it is done. Completed traces are aggregated per name and attributes
+	 * into duration histograms and sent as one "_trace" event each with the
+	 * heartbeat, carrying percentiles and the maximum in milliseconds, so
+	 * tracing hot code paths doesn't add an event per call. Can be called from
+	 * any thread.
+	 * 
+	 * @param name
+	 *            name of the trace, required, must not contain '/'
+	 * @return the started trace, which records nothing if it was left out by
+	 *         sampling
+	 * @throws IllegalArgumentException
+	 *             if name is null, empty or contains '/'
+	 */
+	public Trace startTrace(final String name) {
+		TraceAggregator.checkName(name);
+		return connectionQueue_.getTraceAggregator().start(name);
+	}
+
+	/**
+	 * 设置默认的跟踪采样率 Sets the fraction of traces that are recorded, for names
+	 * without a rate of their own. The default is 1, recording every trace.
+	 * 
+	 * @param rate
+	 *            between 0 and 1
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if rate is not between 0 and 1
+	 */
+	public Statistical setTraceSampleRate(final double rate) {
+		return setTraceSampleRate(null, rate);
+	}
+
+	/**
+	 * 设置指定跟踪的采样率 Sets the fraction of traces with this name that are
+	 * recorded, for high frequency traces. The rate is sent with their
+	 * aggregates as "sample_rate". Spans are recorded when their trace is.
+	 * 
+	 * @param name
+	 *            name of the trace, null to set the default rate
+	 * @param rate
+	 *            between 0 and 1
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if rate is not between 0 and 1
+	 */
+	public Statistical setTraceSampleRate(final String name, final double rate) {
+		if (!(rate >= 0 && rate <= 1)) {
+			throw new IllegalArgumentException("Trace sample rate must be between 0 and 1");
+		}
+		connectionQueue_.getTraceAggregator().setSampleRate(name, rate);
+		return this;
+	}
+
 	/**
 	 * 设置是否自动跟踪视图 Enable or disable automatic view tracking
 	 * 
@@ -585,6 +891,21 @@ public class Statistical {
 		return this;
 	}
 
+	/**
+	 * 设置是否统计视图的帧时间 Enable or disable frame time measurement of tracked
+	 * views. Frame counts, slow and frozen frame counts and frame time
+	 * percentiles in milliseconds are added to the segmentation of each
+	 * view's duration event. Needs Android 4.1 or later.
+	 * 
+	 * @param enable
+	 *            boolean for the state of frame tracking
+	 * @return Countly instance for easy method chaining
+	 */
+	public synchronized Statistical setFrameTracking(boolean enable) {
+		connectionQueue_.getFrameTracker().setEnabled(enable);
+		return this;
+	}
+
 	/**
 	 * 获取是否自动跟踪试图的状态 Check state of automatic view tracking
 	 * 
@@ -619,28 +940,25 @@ public class Statistical {
 	// }
 
 	/**
-	 * 跟踪视图
+	 * 跟踪视图，同名的视图先结束。视图事件在内存中累积，与其他事件一起批量写入
 	 * 
 	 * @param viewName
 	 *            名称
-	 * @return
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalStateException
+	 *             if Countly SDK has not been initialized
+	 * @throws IllegalArgumentException
+	 *             if viewName is null or empty
 	 */
 	public synchronized Statistical recordView(String viewName) {
-		reportViewDuration(viewName);
-		int startTime = Statistical.currentTimestamp();
-		StatisticalStore countlyStore = connectionQueue_.getCountlyStore();
-		if (countlyStore != null) {
-			countlyStore.setViewStart(viewName, startTime);
-		} 
-		HashMap<String, String> segments = new HashMap<String, String>();
-		segments.put("name", viewName);
-		segments.put("visit", "1");
-		segments.put("segment", "Android");
-		if (firstView) {
-			firstView = false;
-			segments.put("start", "1");
-		}
-		recordEvent(viewName, segments, 1);
+		if (!isInitialized()) {
+			throw new IllegalStateException("Countly.sharedInstance().init must be called before recordView");
+		}
+		if (viewName == null || viewName.length() == 0) {
+			throw new IllegalArgumentException("Valid view name is required");
+		}
+		connectionQueue_.getViewTracker().startView(viewName);
+		sendEventsIfNeeded();
 		return this;
 	}
 
@@ -744,6 +1062,27 @@ public class Statistical {
 		return this;
 	}
 
+	/**
+	 * 设置用户头像的上传限制 Sets the limits for the profile picture supplied through
+	 * picturePath. Pictures that are larger are downsampled and re-encoded as
+	 * JPEG on a background thread before they are uploaded.
+	 * 
+	 * @param maxDimension
+	 *            largest width or height of the uploaded picture in pixels
+	 * @param maxBytes
+	 *            largest size of the uploaded picture in bytes
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if maxDimension or maxBytes is not positive
+	 */
+	public synchronized Statistical setPictureUploadLimits(final int maxDimension, final int maxBytes) {
+		if (maxDimension <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("picture upload limits must be positive");
+		}
+		connectionQueue_.getPictureUploader().setLimits(maxDimension, maxBytes);
+		return this;
+	}
+
 	/**
 	 * 设置位置信息 Set user location.
 	 * 
@@ -776,8 +1115,10 @@ public class Statistical {
 	 *            Map&lt;String, String&gt; key segments and their values
 	 */
 	public synchronized Statistical setCustomCrashSegments(Map<String, String> segments) {
-		if (segments != null)
+		if (segments != null) {
 			CrashDetails.setCustomSegments(segments);
+			connectionQueue_.getCrashContext().refreshAsync();
+		}
 		return this;
 	}
 
@@ -786,9 +1127,10 @@ public class Statistical {
 	 * together with crash report
 	 * 
 	 * @param record
-	 *            String a bread crumb for the crash report
+	 *            String a bread crumb for the crash report, the latest 128
+	 *            records of at most 256 characters are kept
 	 */
-	public synchronized Statistical addCrashLog(String record) {
+	public Statistical addCrashLog(String record) {
 		CrashDetails.addLog(record);
 		return this;
 	}
@@ -820,10 +1162,14 @@ public class Statistical {
 
 			@Override
 			public void uncaughtException(Thread t, Throwable e) {
+				final long start = System.nanoTime();
 				StringWriter sw = new StringWriter();
 				PrintWriter pw = new PrintWriter(sw);
 				e.printStackTrace(pw);
-				Statistical.sharedInstance().connectionQueue_.sendCrashReport(sw.toString(), false);
+				Statistical.sharedInstance().connectionQueue_.sendCrashReport(sw.toString(), false, start);
+				if (Statistical.sharedInstance().isLoggingEnabled()) {
+					Log.i(Statistical.TAG, "Crash captured in " + (System.nanoTime() - start) / 1000000 + " ms");
+				}
 
 				// if there was another handler before
 				if (oldHandler != null) {
@@ -834,6 +1180,82 @@ public class Statistical {
 		};
 
 		Thread.setDefaultUncaughtExceptionHandler(handler);
+		connectionQueue_.getCrashContext().setEnabled(true);
+		if (activityCount_ > 0) {
+			connectionQueue_.getCrashContext().start();
+		} else {
+			connectionQueue_.getCrashContext().refreshAsync();
+		}
+		return this;
+	}
+
+	/**
+	 * 开启主线程卡顿监测，卡顿作为非致命异常报告 Starts a watchdog that reports main thread
+	 * stalls longer than the threshold as non-fatal crashes, with samples of
+	 * the main thread's stack during the stall and the stall duration. The
+	 * watchdog only runs while a session is in the foreground.
+	 * 
+	 * @param stallThresholdMillis
+	 *            how long the main thread may be unresponsive before it is
+	 *            reported, at least 250 ms
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalStateException
+	 *             if Countly SDK has not been initialized
+	 */
+	public synchronized Statistical enableMainThreadWatchdog(final long stallThresholdMillis) {
+		if (!isInitialized()) {
+			throw new IllegalStateException("init must be called before enableMainThreadWatchdog");
+		}
+		connectionQueue_.getMainThreadWatchdog().setEnabled(true, stallThresholdMillis);
+		if (activityCount_ > 0) {
+			connectionQueue_.getMainThreadWatchdog().start();
+		}
+		return this;
+	}
+
+	/**
+	 * 开启资源采样 Samples CPU usage, Java and native heap, garbage collections
+	 * and thread count at the given interval while a session is active. The
+	 * samples are sent with session updates as min/max/avg/p95 for the
+	 * session and for each view.
+	 * 
+	 * @param intervalSeconds
+	 *            seconds between samples, at least 1
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if intervalSeconds is less than 1
+	 */
+	public synchronized Statistical enableResourceSampling(final long intervalSeconds) {
+		if (intervalSeconds < 1) {
+			throw new IllegalArgumentException("intervalSeconds must be at least 1");
+		}
+		connectionQueue_.getResourceSampler().setEnabled(true, intervalSeconds);
+		if (activityCount_ > 0) {
+			connectionQueue_.getResourceSampler().start();
+		}
+		return this;
+	}
+
+	/**
+	 * 关闭资源采样 Stops sampling resource usage. Samples already taken are still
+	 * sent with the next session update.
+	 * 
+	 * @return Countly instance for easy method chaining
+	 */
+	public synchronized Statistical disableResourceSampling() {
+		connectionQueue_.getResourceSampler().setEnabled(false, ResourceSampler.DEFAULT_INTERVAL_IN_SECONDS);
+		connectionQueue_.getResourceSampler().stop();
+		return this;
+	}
+
+	/**
+	 * 关闭主线程卡顿监测 Stops the main thread watchdog.
+	 * 
+	 * @return Countly instance for easy method chaining
+	 */
+	public synchronized Statistical disableMainThreadWatchdog() {
+		connectionQueue_.getMainThreadWatchdog().setEnabled(false, MainThreadWatchdog.DEFAULT_THRESHOLD_IN_MILLIS);
+		connectionQueue_.getMainThreadWatchdog().stop();
 		return this;
 	}
 
@@ -854,6 +1276,137 @@ public class Statistical {
 		return this;
 	}
 
+	/**
+	 * 设置上传策略。崩溃报告只要有网络就会立即发送。 Sets upload policies for queued
+	 * requests. Crash reports are always sent as soon as there is a network.
+	 * 
+	 * @param bulkOnlyOnUnmetered
+	 *            upload a large backlog only over unmetered networks such as
+	 *            Wi-Fi
+	 * @param deferLargeBatchesUntilCharging
+	 *            upload a very large backlog only while the device is charging
+	 * @return Countly instance for easy method chaining
+	 */
+	public synchronized Statistical setUploadPolicy(final boolean bulkOnlyOnUnmetered, final boolean deferLargeBatchesUntilCharging) {
+		connectionQueue_.getUploadScheduler().setPolicy(bulkOnlyOnUnmetered, deferLargeBatchesUntilCharging);
+		return this;
+	}
+
+	/**
+	 * 设置请求超时的上下限。超时根据最近请求的延迟按网络类型自动调整，默认在5到30秒之间。
+	 * Sets the bounds for request timeouts. Connect and read timeouts adapt per
+	 * network type to the latency of recent requests, between 5 and 30 seconds
+	 * by default. Until enough requests were measured the upper bound is used.
+	 * 
+	 * @param minTimeoutInMillis
+	 *            lower bound for connect and read timeouts
+	 * @param maxTimeoutInMillis
+	 *            upper bound for connect and read timeouts
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if a bound is not positive or the lower bound exceeds the
+	 *             upper bound
+	 */
+	public synchronized Statistical setRequestTimeoutBounds(final int minTimeoutInMillis, final int maxTimeoutInMillis) {
+		if (minTimeoutInMillis <= 0 || maxTimeoutInMillis < minTimeoutInMillis) {
+			throw new IllegalArgumentException("invalid timeout bounds");
+		}
+		connectionQueue_.getNetworkEstimator().setTimeoutBounds(minTimeoutInMillis, maxTimeoutInMillis);
+		return this;
+	}
+
+	/**
+	 * 设置备用服务器。SDK记录每个服务器的健康状况和延迟，发送到最快的可用服务器，
+	 * 失败或变慢时切换，同一会话内保持不变。 Sets additional ingestion endpoints
+	 * next to the server passed to init. The SDK tracks health and latency per
+	 * endpoint, sends to the fastest healthy one and fails over when requests
+	 * fail or get slow. The choice stays the same for a session.
+	 * 
+	 * @param serverURLs
+	 *            additional servers running the same Countly instance; none
+	 *            to use only the init server
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if a URL is invalid, or not https once public keys are
+	 *             pinned
+	 */
+	public synchronized Statistical setAdditionalServerURLs(final String... serverURLs) {
+		for (String serverURL : serverURLs) {
+			if (!isValidURL(serverURL)) {
+				throw new IllegalArgumentException("valid serverURL is required");
+			}
+			if (publicKeyPinCertificates != null && !serverURL.startsWith("https")) {
+				throw new IllegalArgumentException("server must start with https once you specified public keys");
+			}
+		}
+		connectionQueue_.setAdditionalServerURLs(Arrays.asList(serverURLs));
+		return this;
+	}
+
+	/**
+	 * 设置SDK的流量预算。预算用完后，直到下一天或下一个月只发送崩溃报告和会话开始/结束。
+	 * Sets a data budget for the SDK's uploads. Once a budget is spent, only
+	 * crash reports and session begin and end go out until the day or month
+	 * is over; everything else stays queued.
+	 * 
+	 * @param dailyBytes
+	 *            bytes per day, 0 for no daily budget
+	 * @param monthlyBytes
+	 *            bytes per calendar month, 0 for no monthly budget
+	 * @param meteredOnly
+	 *            true to apply the budgets to traffic over mobile networks only
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if a budget is negative
+	 */
+	public synchronized Statistical setDataBudget(final long dailyBytes, final long monthlyBytes, final boolean meteredOnly) {
+		if (dailyBytes < 0 || monthlyBytes < 0) {
+			throw new IllegalArgumentException("budget must not be negative");
+		}
+		connectionQueue_.getTrafficMeter().setBudget(dailyBytes, monthlyBytes, meteredOnly);
+		return this;
+	}
+
+	/**
+	 * 设置发送完整设备指标的间隔。其余会话开始时只发送有变化的指标。 Sets how often
+	 * begin_session carries the complete device metrics. In between, it only
+	 * carries the metrics that changed since the server acknowledged them.
+	 * The default is 7 days.
+	 * 
+	 * @param seconds
+	 *            refresh interval in seconds, 0 to always send all metrics
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if seconds is negative
+	 */
+	public synchronized Statistical setMetricsRefreshInterval(final long seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("seconds must not be negative");
+		}
+		connectionQueue_.getMetricsFingerprint().setRefreshInterval(seconds);
+		return this;
+	}
+
+	/**
+	 * 设置崩溃分组的时间窗口。同一堆栈签名的崩溃在窗口内只发送第一个完整报告，其余只计数。 Sets
+	 * the window in which crashes with the same stack signature are grouped.
+	 * Only the first crash of a group is sent in full, the repeats are sent
+	 * as a count when the window ends. The default is one hour.
+	 *
+	 * @param seconds
+	 *            grouping window in seconds, 0 to send every crash in full
+	 * @return Countly instance for easy method chaining
+	 * @throws IllegalArgumentException
+	 *             if seconds is negative
+	 */
+	public synchronized Statistical setCrashGroupingWindow(final long seconds) {
+		if (seconds < 0) {
+			throw new IllegalArgumentException("seconds must not be negative");
+		}
+		connectionQueue_.getCrashGrouper().setWindow(seconds);
+		return this;
+	}
+
 	/**
 	 * 设置调试日志记录是否已开启或关闭。日志默认情况下禁用 Sets whether debug logging is turned on or
 	 * off. Logging is disabled by default.
@@ -894,57 +1447,91 @@ public class Statistical {
 	 * @param viewName
 	 */
 	void reportViewDuration(String viewName) {
-		StatisticalStore countlyStore = connectionQueue_.getCountlyStore();
-		if (countlyStore != null) {
-			int viewStartTime = countlyStore.getViewStart(viewName);
-			if (viewStartTime != -1) {
-				HashMap<String, String> segments = new HashMap<String, String>();
-				segments.put("name", viewName);
-				segments.put("dur", String.valueOf(Statistical.currentTimestamp() - viewStartTime));
-				segments.put("segment", "Android");
-				recordEvent(viewName, segments, 1);
-				countlyStore.setViewStart(viewName, -1);
-			}
+		connectionQueue_.getViewTracker().endView(viewName);
+		sendEventsIfNeeded();
+	}
+
+	/**
+	 * 将视图事件和启动事件一次写入事件队列
+	 */
+	void flushViewEvents() {
+		final List<Event> events = connectionQueue_.getViewTracker().drainEvents();
+		events.addAll(connectionQueue_.getStartupTracer().drainEvents());
+		if (!events.isEmpty()) {
+			eventQueue_.recordEvents(events);
 		}
+	}
 
+	/**
+	 * 将网络请求和自定义跟踪的汇总写入事件队列，只随心跳和会话结束写入，使汇总覆盖整个周期
+	 * 
+	 * @return whether any summary was queued
+	 */
+	private boolean flushSummaries() {
+		final List<Event> events = connectionQueue_.getNetworkTracker().drainSummaries();
+		events.addAll(connectionQueue_.getTraceAggregator().drainSummaries());
+		if (events.isEmpty()) {
+			return false;
+		}
+		eventQueue_.recordEvents(events);
+		return true;
 	}
 
 	/**
-	 * 如果有超过10个，提交的所有本地排队事件到服务器 Submits all of the locally queued events to the
-	 * server if there are more than 10 of them.
+	 * 如果排队事件达到批量大小，提交所有本地排队事件到服务器。批量大小随网络延迟在10到40之间调整
+	 * Submits all of the locally queued events to the server if there are at
+	 * least a batch of them. The batch size is 10 and grows up to 40 on slow
+	 * networks, so fewer requests carry the same events.
 	 */
 	void sendEventsIfNeeded() {
-		if (eventQueue_.size() >= EVENT_QUEUE_SIZE_THRESHOLD) {
+		if (eventQueue_.size() + connectionQueue_.getViewTracker().pendingCount() >= connectionQueue_.getEventBatchSize()) {
+			flushViewEvents();
 			connectionQueue_.recordEvents(eventQueue_.events());
+			// only the events flush realigns, the session update keeps its deadline
+			lastFlushTime_ = System.nanoTime();
 		}
 	}
 
 	/**
-	 * 每60秒叫向服务器发送一次心跳。如果没有一个活动的应用程序会话则不做任何操作 Called every 60 seconds to send a
-	 * session heartbeat to the server. Does nothing if there is not an active
-	 * application session.
+	 * 会话期间每60秒向服务器发送一次会话更新和汇总。事件另有发送期限，如果期间已经因批量大小发送过事件，
+	 * 则事件顺延到下一个发送期限。 Called while a session is active. Sends a
+	 * session update with the resource and network and trace summaries every
+	 * TIMER_DELAY_IN_SECONDS, and flushes events when TIMER_DELAY_IN_SECONDS
+	 * have passed since they were last flushed. Flushes of a full batch of
+	 * events only move the events deadline, never the session update.
 	 */
 	synchronized void onTimer() {
-		final boolean hasActiveSession = activityCount_ > 0;
-		if (hasActiveSession) {
+		final boolean hasActiveSession = activityCount_ > 0 && eventQueue_ != null;
+		if (!hasActiveSession) {
+			return;
+		}
+		final long now = System.nanoTime();
+		final long delay = TimeUnit.SECONDS.toNanos(TIMER_DELAY_IN_SECONDS);
+		boolean flushEvents = now - lastFlushTime_ >= delay;
+		if (now - lastSessionUpdateTime_ >= delay) {
 			if (!disableUpdateSessionRequests_) {
 				connectionQueue_.updateSession(roundedSecondsSinceLastSessionDurationUpdate());
 			}
+			// the summaries go out with the events already queued
+			flushEvents |= flushSummaries();
+			lastSessionUpdateTime_ = now;
+		}
+		if (flushEvents) {
+			flushViewEvents();
 			if (eventQueue_.size() > 0) {
 				connectionQueue_.recordEvents(eventQueue_.events());
 			}
+			lastFlushTime_ = now;
 		}
+		scheduleHeartbeat();
 	}
 
 	/**
-	 * Calculates the unsent session duration in seconds, rounded to the nearest
-	 * int.
+	 * Returns the unsent session duration in whole seconds, the rest is sent
+	 * with the next update.
 	 */
 	int roundedSecondsSinceLastSessionDurationUpdate() {
-		final long currentTimestampInNanoseconds = System.nanoTime();
-		final long unsentSessionLengthInNanoseconds = currentTimestampInNanoseconds - prevSessionDurationStartTime_;
-		prevSessionDurationStartTime_ = currentTimestampInNanoseconds;
-		return (int) Math.round(unsentSessionLengthInNanoseconds / 1000000000.0d);
+		return connectionQueue_.getSessionManager().takeUnsentSeconds();
 	}
 
 	/**
@@ -1019,6 +1606,29 @@ public class Statistical {
 		return Statistical.sharedInstance();
 	}
 
+	/**
+	 * 获取SDK后台任务的统计数据 Returns counters of the SDK's background work:
+	 * submitted, completed, failed and running tasks, the number of tasks
+	 * waiting in the queue and the current number of threads.
+	 * 
+	 * @return metric name to value
+	 */
+	public Map<String, Long> getBackgroundTaskMetrics() {
+		return scheduler_.getMetrics();
+	}
+
+	/**
+	 * 获取SDK今天和本月的流量 Returns the bytes the SDK sent and received today and
+	 * this month per network type, with keys like "daily_mobile_sent" and
+	 * "monthly_wifi_received", plus "daily_budget" and "monthly_budget".
+	 * Counts include an estimate for HTTP headers.
+	 * 
+	 * @return counter name to bytes
+	 */
+	public Map<String, Long> getDataUsage() {
+		return connectionQueue_.getTrafficMeter().getUsage();
+	}
+
 	// for unit testing
 	ConnectionQueue getConnectionQueue() {
 		return connectionQueue_;
@@ -1028,8 +1638,12 @@ public class Statistical {
 		connectionQueue_ = connectionQueue;
 	}
 
-	ExecutorService getTimerService() {
-		return timerService_;
+	StatisticalScheduler getScheduler() {
+		return scheduler_;
+	}
+
+	ScheduledFuture<?> getTimerFuture() {
+		return timerFuture_;
 	}
 
 	EventQueue getEventQueue() {
@@ -1040,14 +1654,6 @@ public class Statistical {
 		eventQueue_ = eventQueue;
 	}
 
-	long getPrevSessionDurationStartTime() {
-		return prevSessionDurationStartTime_;
-	}
-
-	void setPrevSessionDurationStartTime(final long prevSessionDurationStartTime) {
-		prevSessionDurationStartTime_ = prevSessionDurationStartTime;
-	}
-
 	int getActivityCount() {
 		return activityCount_;
 	}
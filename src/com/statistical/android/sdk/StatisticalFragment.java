@@ -3,7 +3,7 @@ package com.statistical.android.sdk;
 import android.support.v4.app.Fragment;
 
 /**
- * 若需要统计Fragement时常，需继承此类
+ * 若需要统计Fragement时常，需继承此类。可见性变化在后台记录
  * @author hdb
  *
  */
@@ -45,14 +45,9 @@ public class StatisticalFragment extends Fragment{
      * @param isHappenedInSetUserVisibleHintMethod true：本次回调发生在setUserVisibleHintMethod方法里；false：发生在onResume或onPause方法里
      */
     public void onVisibilityChangedToUser(boolean isVisibleToUser, boolean isHappenedInSetUserVisibleHintMethod){
-        if(isVisibleToUser){
-            if(pageName != null){
-            	Statistical.sharedInstance().onStart(pageName);
-            }
-        }else{
-            if(pageName != null){
-            	Statistical.sharedInstance().onStop(pageName);
-            }
+        // handled in the background, the UI thread neither waits for the SDK lock nor writes
+        if(pageName != null){
+        	Statistical.sharedInstance().onFragmentVisibilityChanged(pageName, isVisibleToUser);
         }
     }
 	
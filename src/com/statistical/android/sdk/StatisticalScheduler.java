@@ -0,0 +1,184 @@
+package com.statistical.android.sdk;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SDK调度器
+ * The thread pools for all background work of the SDK. Short tasks, timers and delayed
+ * tasks run on a small shared pool; work that blocks on the network or on other
+ * processes (uploads, the advertising id lookup) runs one task at a time on its own
+ * thread, so lifecycle updates, heartbeats and session ends never wait behind a slow
+ * request. Threads are named, run at background priority, are bounded in number and
+ * exit when idle. The pools are created on first use and released by shutdown().
+ */
+class StatisticalScheduler {
+    /**
+     * 最大线程数
+     */
+    static final int MAX_THREADS = 3;
+    private static final long KEEP_ALIVE_IN_SECONDS = 30;
+
+    private ScheduledThreadPoolExecutor executor_;
+    private ThreadPoolExecutor blockingExecutor_;
+    private final AtomicLong submitted_ = new AtomicLong();
+    private final AtomicLong completed_ = new AtomicLong();
+    private final AtomicLong failed_ = new AtomicLong();
+    private final AtomicInteger running_ = new AtomicInteger();
+
+    private synchronized ScheduledThreadPoolExecutor executor() {
+        if (executor_ == null) {
+            executor_ = new ScheduledThreadPoolExecutor(MAX_THREADS, threadFactory("Statistical-"));
+            executor_.setKeepAliveTime(KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS);
+            executor_.allowCoreThreadTimeOut(true);
+        }
+        return executor_;
+    }
+
+    private synchronized ThreadPoolExecutor blockingExecutor() {
+        if (blockingExecutor_ == null) {
+            blockingExecutor_ = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory("Statistical-Net-"));
+            blockingExecutor_.allowCoreThreadTimeOut(true);
+        }
+        return blockingExecutor_;
+    }
+
+    private static ThreadFactory threadFactory(final String prefix) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, prefix + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * 立即在后台执行任务
+     */
+    Future<?> submit(final Runnable task) {
+        submitted_.incrementAndGet();
+        return executor().submit(wrap(task));
+    }
+
+    /**
+     * 在网络线程上执行阻塞任务，任务依次执行
+     * Runs a task that blocks on the network or another process. These tasks run one at
+     * a time, in order, on a thread of their own.
+     */
+    Future<?> submitBlocking(final Runnable task) {
+        submitted_.incrementAndGet();
+        return blockingExecutor().submit(wrap(task));
+    }
+
+    /**
+     * 延迟执行任务
+     */
+    ScheduledFuture<?> schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        submitted_.incrementAndGet();
+        return executor().schedule(wrap(task), delay, unit);
+    }
+
+    /**
+     * 周期执行任务，任务抛出异常后仍会继续执行
+     * Runs a task periodically; an exception thrown by one run does not cancel the next.
+     */
+    ScheduledFuture<?> scheduleWithFixedDelay(final Runnable task, final long initialDelay, final long delay, final TimeUnit unit) {
+        submitted_.incrementAndGet();
+        return executor().scheduleWithFixedDelay(wrap(task), initialDelay, delay, unit);
+    }
+
+    /**
+     * 停止所有任务并释放线程，之后再次提交任务会创建新的线程池
+     * Cancels all pending tasks, interrupts running ones and releases the threads.
+     * Tasks submitted afterwards start a new pool.
+     */
+    synchronized void shutdown() {
+        if (executor_ != null) {
+            cancel(executor_.shutdownNow());
+            executor_ = null;
+        }
+        if (blockingExecutor_ != null) {
+            cancel(blockingExecutor_.shutdownNow());
+            blockingExecutor_ = null;
+        }
+    }
+
+    /**
+     * Completes the futures of tasks that never ran, so callers waiting for them to be
+     * done don't wait forever.
+     */
+    private static void cancel(final List<Runnable> dropped) {
+        for (Runnable task : dropped) {
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * 等待执行的任务数，包括延迟任务
+     * @return number of tasks waiting in the queue, delayed ones included
+     */
+    synchronized int getQueueDepth() {
+        return (executor_ == null ? 0 : executor_.getQueue().size()) + (blockingExecutor_ == null ? 0 : blockingExecutor_.getQueue().size());
+    }
+
+    /**
+     * 返回调度器的统计数据
+     * @return task counters, the number of running tasks, queue depth and pool size
+     */
+    Map<String, Long> getMetrics() {
+        final Map<String, Long> metrics = new HashMap<String, Long>();
+        metrics.put("submitted", submitted_.get());
+        metrics.put("completed", completed_.get());
+        metrics.put("failed", failed_.get());
+        metrics.put("running", (long) running_.get());
+        metrics.put("queued", (long) getQueueDepth());
+        synchronized (this) {
+            metrics.put("threads", (executor_ == null ? 0L : (long) executor_.getPoolSize()) + (blockingExecutor_ == null ? 0L : (long) blockingExecutor_.getPoolSize()));
+        }
+        return metrics;
+    }
+
+    private Runnable wrap(final Runnable task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                running_.incrementAndGet();
+                try {
+                    task.run();
+                    completed_.incrementAndGet();
+                } catch (Throwable t) {
+                    failed_.incrementAndGet();
+                    if (Statistical.sharedInstance().isLoggingEnabled()) {
+                        Log.w(Statistical.TAG, "Background task failed", t);
+                    }
+                } finally {
+                    running_.decrementAndGet();
+                }
+            }
+        };
+    }
+}
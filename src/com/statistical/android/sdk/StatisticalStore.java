@@ -21,12 +21,35 @@ public class StatisticalStore {
     private static final String PREFERENCES = "COUNTLY_STORE";
     private static final String DELIMITER = ":::";
     private static final String CONNECTIONS_PREFERENCE = "CONNECTIONS";
+    private static final String CRITICAL_CONNECTIONS_PREFERENCE = "CONNECTIONS_CRITICAL";
+    private static final String BULK_CONNECTIONS_PREFERENCE = "CONNECTIONS_BULK";
     private static final String EVENTS_PREFERENCE = "EVENTS";
     private static final String LOCATION_PREFERENCE = "LOCATION";
     private static final String SESSION_PREFERENCE = "SESSION";
-    private static final String VIEW_START_PREFERENCE = "VIEW_START_";
     private final SharedPreferences preferences_;
 
+    /**
+     * 连接队列的优先级通道，每个通道内部保持先进先出
+     * Priority lanes of the connection queue. Each lane keeps its own FIFO order, the
+     * weight is the lane's share when ConnectionProcessor serves several lanes.
+     */
+    enum Lane {
+        /** crashes and session boundaries */
+        CRITICAL(CRITICAL_CONNECTIONS_PREFERENCE, 8),
+        /** events and user data */
+        NORMAL(CONNECTIONS_PREFERENCE, 4),
+        /** heartbeats and referrer data */
+        BULK(BULK_CONNECTIONS_PREFERENCE, 1);
+
+        final String preference;
+        final int weight;
+
+        Lane(final String preference, final int weight) {
+            this.preference = preference;
+            this.weight = weight;
+        }
+    }
+
     /**
      * Constructs a CountlyStore object.
      * @param context used to retrieve storage meta data, must not be null.
@@ -40,10 +63,22 @@ public class StatisticalStore {
     }
 
     /**
-     * Returns an unsorted array of the current stored connections.
+     * Returns the current stored connections of all lanes, most important lane first.
      */
     public String[] connections() {
-        final String joinedConnStr = preferences_.getString(CONNECTIONS_PREFERENCE, "");
+        final List<String> connections = new ArrayList<>();
+        for (Lane lane : Lane.values()) {
+            connections.addAll(Arrays.asList(connections(lane)));
+        }
+        return connections.toArray(new String[connections.size()]);
+    }
+
+    /**
+     * 返回指定通道中的连接，从最旧到最新
+     * Returns the current stored connections of a lane, oldest first.
+     */
+    String[] connections(final Lane lane) {
+        final String joinedConnStr = preferences_.getString(lane.preference, "");
         return joinedConnStr.length() == 0 ? new String[0] : joinedConnStr.split(DELIMITER);
     }
 
@@ -89,35 +124,66 @@ public class StatisticalStore {
      * Returns true if no connections are current stored, false otherwise.
      */
     public boolean isEmptyConnections() {
-        return preferences_.getString(CONNECTIONS_PREFERENCE, "").length() == 0;
+        for (Lane lane : Lane.values()) {
+            if (preferences_.getString(lane.preference, "").length() != 0) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * 添加连接到本地存储。
-     * Adds a connection to the local store.
+     * 添加连接到本地存储的普通通道。
+     * Adds a connection to the normal lane of the local store.
      * @param str the connection to be added, ignored if null or empty
      */
-    public synchronized void addConnection(final String str) {
+    public void addConnection(final String str) {
+        addConnection(str, Lane.NORMAL);
+    }
+
+    /**
+     * 添加连接到本地存储的指定通道。
+     * Adds a connection to a lane of the local store.
+     * @param str the connection to be added, ignored if null or empty
+     * @param lane the lane to add the connection to
+     */
+    synchronized void addConnection(final String str, final Lane lane) {
         if (str != null && str.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(connections()));
+            final List<String> connections = new ArrayList<>(Arrays.asList(connections(lane)));
             connections.add(str);
-            preferences_.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).commit();
+            preferences_.edit().putString(lane.preference, join(connections, DELIMITER)).commit();
         }
     }
 
     /**
      * 从本地储存中移除一个连接
-     * Removes a connection from the local store.
+     * Removes a connection from whichever lane holds it.
      * @param str the connection to be removed, ignored if null or empty,
      *            or if a matching connection cannot be found
      */
     public synchronized void removeConnection(final String str) {
+        for (Lane lane : Lane.values()) {
+            if (removeConnection(str, lane)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 从指定通道中移除一个连接
+     * Removes a connection from a lane of the local store.
+     * @param str the connection to be removed, ignored if null or empty
+     * @return true if the connection was found and removed
+     */
+    synchronized boolean removeConnection(final String str, final Lane lane) {
         if (str != null && str.length() > 0) {
-            final List<String> connections = new ArrayList<>(Arrays.asList(connections()));
+            final List<String> connections = new ArrayList<>(Arrays.asList(connections(lane)));
             if (connections.remove(str)) {
-                preferences_.edit().putString(CONNECTIONS_PREFERENCE, join(connections, DELIMITER)).commit();
+                preferences_.edit().putString(lane.preference, join(connections, DELIMITER)).commit();
+                return true;
             }
         }
+        return false;
     }
 
     /**
@@ -130,22 +196,18 @@ public class StatisticalStore {
         events.add(event);
         preferences_.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
     }
+
     /**
-     * 设置view开始时间
-     * @param viewName view名称
-     * @param startTime view开始时间
-     */
-    void setViewStart(String viewName, int startTime) {
-    	preferences_.edit().putInt(VIEW_START_PREFERENCE + viewName, startTime).commit();
-    }
-    /**
-     * 获取view开始时间 
-     * @param viewName view名称
-     * @return
+     * 一次添加多个自定义事件
+     * Adds several custom events to the local store with a single write.
+     * @param eventsToAdd events to be added, does nothing if null or empty
      */
-    int getViewStart(String viewName) {
-		int startTime = preferences_.getInt(VIEW_START_PREFERENCE + viewName, -1);
-    	return startTime;
+    synchronized void addEvents(final Collection<Event> eventsToAdd) {
+        if (eventsToAdd != null && eventsToAdd.size() > 0) {
+            final List<Event> events = eventsList();
+            events.addAll(eventsToAdd);
+            preferences_.edit().putString(EVENTS_PREFERENCE, joinEvents(events, DELIMITER)).commit();
+        }
     }
     /**
      * 设置session开始时间
@@ -289,7 +351,9 @@ public class StatisticalStore {
     synchronized void clear() {
         final SharedPreferences.Editor prefsEditor = preferences_.edit();
         prefsEditor.remove(EVENTS_PREFERENCE);
-        prefsEditor.remove(CONNECTIONS_PREFERENCE);
+        for (Lane lane : Lane.values()) {
+            prefsEditor.remove(lane.preference);
+        }
         prefsEditor.commit();
     }
 }
@@ -0,0 +1,155 @@
+package com.statistical.android.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 自定义跟踪
+ * A timed section of app code, started with {@link Statistical#startTrace(String)} and
+ * finished with {@link #end()}. Spans started from a trace are timed on their own and
+ * aggregated under "trace/span"; spans still open when their trace ends are ended with
+ * it. Completed traces are not sent one by one but aggregated per name and attributes
+ * into duration histograms, sent as one "_trace" event each with the heartbeat.
+ * A trace left out by sampling is still returned but records nothing.
+ * A trace may be ended from another thread than the one that started it.
+ */
+public final class Trace {
+    /**
+     * 每个跟踪最多的属性数，超出的属性被忽略
+     */
+    public static final int MAX_ATTRIBUTES = 5;
+    /**
+     * 属性值最大长度，超出部分被截断
+     */
+    public static final int MAX_ATTRIBUTE_LENGTH = 64;
+
+    // left out by sampling, records nothing
+    static final Trace NOT_SAMPLED = new Trace(null, null, null, 0, 0);
+
+    private final TraceAggregator aggregator_;
+    private final Trace parent_;
+    private final String name_;
+    private final double sampleRate_;
+    private final long startNanos_;
+    private Map<String, String> attributes_;
+    private List<Trace> openSpans_;
+    private boolean ended_;
+
+    Trace(final TraceAggregator aggregator, final Trace parent, final String name, final double sampleRate, final long startNanos) {
+        aggregator_ = aggregator;
+        parent_ = parent;
+        name_ = name;
+        sampleRate_ = sampleRate;
+        startNanos_ = startNanos;
+    }
+
+    /**
+     * 获取名称，子跟踪的名称包含父跟踪的名称
+     * @return name the trace is aggregated under, null if it was left out by sampling
+     */
+    public String getName() {
+        return name_;
+    }
+
+    /**
+     * 开始一个子跟踪
+     * @param name name of the span, required, must not contain '/'
+     * @return the started span, not recording if this trace isn't
+     * @throws IllegalArgumentException if name is null, empty or contains '/'
+     */
+    public Trace startSpan(final String name) {
+        TraceAggregator.checkName(name);
+        if (aggregator_ == null) {
+            return this;
+        }
+        final Trace span = new Trace(aggregator_, this, name_ + "/" + name, sampleRate_, System.nanoTime());
+        synchronized (this) {
+            if (ended_) {
+                return NOT_SAMPLED;
+            }
+            if (openSpans_ == null) {
+                openSpans_ = new ArrayList<Trace>(2);
+            }
+            openSpans_.add(span);
+        }
+        return span;
+    }
+
+    /**
+     * 设置属性，完成的跟踪按名称和属性分别汇总，属性取值应当有限
+     * Sets an attribute. Traces are aggregated per name and attributes, so
+     * values should come from a small set, e.g. "cache"="hit" rather than a user id.
+     * @return this trace for easy method chaining
+     * @throws IllegalArgumentException if key or value is null or empty, or key is
+     *         reserved for the aggregates
+     */
+    public Trace putAttribute(final String key, final String value) {
+        if (key == null || key.length() == 0) {
+            throw new IllegalArgumentException("Trace attribute key cannot be null or empty");
+        }
+        if (value == null || value.length() == 0) {
+            throw new IllegalArgumentException("Trace attribute value cannot be null or empty");
+        }
+        if (TraceAggregator.isReservedKey(key)) {
+            throw new IllegalArgumentException("Trace attribute key " + key + " is reserved");
+        }
+        if (aggregator_ == null) {
+            return this;
+        }
+        synchronized (this) {
+            if (ended_) {
+                return this;
+            }
+            if (attributes_ == null) {
+                // sorted, so the same attributes always aggregate together
+                attributes_ = new TreeMap<String, String>();
+            }
+            if (attributes_.size() < MAX_ATTRIBUTES || attributes_.containsKey(key)) {
+                attributes_.put(key, value.length() > MAX_ATTRIBUTE_LENGTH ? value.substring(0, MAX_ATTRIBUTE_LENGTH) : value);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * 结束跟踪，仍在进行的子跟踪同时结束。重复调用无效
+     */
+    public void end() {
+        end(System.nanoTime());
+    }
+
+    private void end(final long endNanos) {
+        if (aggregator_ == null) {
+            return;
+        }
+        final List<Trace> openSpans;
+        final Map<String, String> attributes;
+        synchronized (this) {
+            if (ended_) {
+                return;
+            }
+            ended_ = true;
+            openSpans = openSpans_;
+            openSpans_ = null;
+            attributes = attributes_;
+        }
+        // no lock is held here, a span removes itself from its parent
+        if (openSpans != null) {
+            for (Trace span : openSpans) {
+                span.end(endNanos);
+            }
+        }
+        if (parent_ != null) {
+            parent_.spanEnded(this);
+        }
+        aggregator_.record(name_, attributes, endNanos - startNanos_, sampleRate_);
+    }
+
+    private synchronized void spanEnded(final Trace span) {
+        if (openSpans_ != null) {
+            openSpans_.remove(span);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.statistical.android.sdk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 自定义跟踪汇总
+ * Starts traces, deciding by the sample rate of their name whether they record, and
+ * aggregates completed ones per name and attributes into a histogram of microsecond
+ * durations. The aggregates are turned into one "_trace" event each when the summaries
+ * are flushed. The number of aggregates is bounded; beyond the bound a trace is
+ * aggregated without its attributes, and a trace with a new name under "_other", so
+ * memory stays constant however many traces are recorded.
+ */
+class TraceAggregator {
+    static final String TRACE_EVENT = "_trace";
+    /**
+     * 每个统计周期最多的汇总数
+     */
+    static final int MAX_AGGREGATES = 50;
+    static final String OTHER_NAME = "_other";
+    // attributes are appended to the name after this, so no trace's key can equal another's
+    private static final char KEY_SEPARATOR = '\u0000';
+    private static final String OTHER_KEY = OTHER_NAME + KEY_SEPARATOR;
+    private static final String[] RESERVED_KEYS = {"name", "p50", "p90", "p99", "max", "sample_rate"};
+
+    private static final class Aggregate {
+        final String name;
+        final Map<String, String> attributes;
+        final double sampleRate;
+        final Histogram durations = new Histogram();
+
+        Aggregate(final String name, final Map<String, String> attributes, final double sampleRate) {
+            this.name = name;
+            this.attributes = attributes;
+            this.sampleRate = sampleRate;
+        }
+    }
+
+    private final Map<String, Double> sampleRates_ = new ConcurrentHashMap<String, Double>();
+    private final Random random_ = new Random();
+    private volatile double defaultSampleRate_ = 1;
+    private Map<String, Aggregate> aggregates_ = new LinkedHashMap<String, Aggregate>();
+
+    static void checkName(final String name) {
+        if (name == null || name.length() == 0) {
+            throw new IllegalArgumentException("Valid trace name is required");
+        }
+        if (name.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Trace name cannot contain '/'");
+        }
+    }
+
+    static boolean isReservedKey(final String key) {
+        for (String reserved : RESERVED_KEYS) {
+            if (reserved.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 设置采样率
+     * @param name trace name, null for traces without a rate of their own
+     * @param rate between 0 and 1
+     */
+    void setSampleRate(final String name, final double rate) {
+        if (name == null) {
+            defaultSampleRate_ = rate;
+        } else {
+            sampleRates_.put(name, rate);
+        }
+    }
+
+    /**
+     * 开始跟踪，未被采样时返回不记录的跟踪
+     */
+    Trace start(final String name) {
+        final Double rate = sampleRates_.get(name);
+        final double sampleRate = rate == null ? defaultSampleRate_ : rate;
+        if (sampleRate < 1 && (sampleRate <= 0 || random_.nextDouble() >= sampleRate)) {
+            return Trace.NOT_SAMPLED;
+        }
+        return new Trace(this, null, name, sampleRate, System.nanoTime());
+    }
+
+    /**
+     * 记录一个完成的跟踪
+     * @param attributes sorted attributes, null if there are none
+     */
+    synchronized void record(final String name, final Map<String, String> attributes, final long durationNanos, final double sampleRate) {
+        final String key = key(name, attributes);
+        Aggregate aggregate = aggregates_.get(key);
+        if (aggregate == null) {
+            if (aggregates_.size() < MAX_AGGREGATES) {
+                aggregate = new Aggregate(name, attributes, sampleRate);
+                aggregates_.put(key, aggregate);
+            } else {
+                aggregate = aggregates_.get(name);
+                if (aggregate == null) {
+                    aggregate = aggregates_.get(OTHER_KEY);
+                    if (aggregate == null) {
+                        aggregate = new Aggregate(OTHER_NAME, null, sampleRate);
+                        aggregates_.put(OTHER_KEY, aggregate);
+                    }
+                }
+            }
+        }
+        aggregate.durations.add(durationNanos / 1000);
+    }
+
+    /**
+     * 取出汇总事件并开始新的统计周期
+     */
+    synchronized List<Event> drainSummaries() {
+        final List<Event> events = new ArrayList<Event>(aggregates_.size());
+        if (aggregates_.isEmpty()) {
+            return events;
+        }
+        final int timestamp = Statistical.currentTimestamp();
+        final int hour = Statistical.currentHour();
+        final int dow = Statistical.currentDayOfWeek();
+        for (Aggregate aggregate : aggregates_.values()) {
+            final Map<String, String> segments = new HashMap<String, String>();
+            if (aggregate.attributes != null) {
+                segments.putAll(aggregate.attributes);
+            }
+            segments.put("name", aggregate.name);
+            segments.put("p50", millis(aggregate.durations.getPercentile(50)));
+            segments.put("p90", millis(aggregate.durations.getPercentile(90)));
+            segments.put("p99", millis(aggregate.durations.getPercentile(99)));
+            segments.put("max", millis(aggregate.durations.getMax()));
+            if (aggregate.sampleRate < 1) {
+                segments.put("sample_rate", String.format(Locale.US, "%.4f", aggregate.sampleRate));
+            }
+
+            final Event event = new Event();
+            event.key = TRACE_EVENT;
+            event.segmentation = segments;
+            event.count = (int) aggregate.durations.getCount();
+            event.sum = aggregate.durations.getSum() / 1000.0;
+            event.timestamp = timestamp;
+            event.hour = hour;
+            event.dow = dow;
+            events.add(event);
+        }
+        aggregates_ = new LinkedHashMap<String, Aggregate>();
+        return events;
+    }
+
+    private static String key(final String name, final Map<String, String> attributes) {
+        if (attributes == null || attributes.isEmpty()) {
+            return name;
+        }
+        final StringBuilder key = new StringBuilder(name);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            key.append(KEY_SEPARATOR).append(attribute.getKey()).append(KEY_SEPARATOR).append(attribute.getValue());
+        }
+        return key.toString();
+    }
+
+    private static String millis(final long micros) {
+        return String.format(Locale.US, "%d.%03d", micros / 1000, micros % 1000);
+    }
+}
@@ -0,0 +1,422 @@
+package com.statistical.android.sdk;
+
+import android.os.SystemClock;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.security.Permission;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 带统计的HttpURLConnection
+ * Wraps an HttpURLConnection and records the request in the NetworkTracker: the time
+ * from the first network use to the end of the response body, the status and the
+ * bytes written and read through the streams. The request ends when the response body
+ * is read to its end or closed, when the connection is disconnected, or when it fails.
+ * A response with an error status ends when getInputStream throws, with the length of
+ * its error body as received bytes, as callers often check the status and never read it.
+ */
+class TracedHttpURLConnection extends HttpURLConnection {
+    private final HttpURLConnection delegate_;
+    private final NetworkTracker tracker_;
+    private long startMillis_;
+    private long sentBytes_ = -1;
+    private long receivedBytes_ = -1;
+    private int status_ = -1;
+    private boolean recorded_;
+
+    TracedHttpURLConnection(final HttpURLConnection delegate, final NetworkTracker tracker) {
+        super(delegate.getURL());
+        delegate_ = delegate;
+        tracker_ = tracker;
+    }
+
+    private synchronized void started() {
+        if (startMillis_ == 0) {
+            startMillis_ = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private synchronized void finished() {
+        if (recorded_ || startMillis_ == 0) {
+            return;
+        }
+        recorded_ = true;
+        tracker_.record(delegate_.getRequestMethod(), delegate_.getURL().toString(), status_, sentBytes_, receivedBytes_, SystemClock.elapsedRealtime() - startMillis_);
+    }
+
+    /**
+     * The response headers are read, which connects the delegate and waits for the
+     * response like getResponseCode.
+     */
+    private void responseRequested() {
+        started();
+        try {
+            getResponseCode();
+        } catch (IOException e) {
+            // the delegate reports the failure through its own return value
+        }
+    }
+
+    private synchronized void addSent(final long bytes) {
+        sentBytes_ = Math.max(0, sentBytes_) + bytes;
+    }
+
+    private synchronized void addReceived(final long bytes) {
+        receivedBytes_ = Math.max(0, receivedBytes_) + bytes;
+    }
+
+    private synchronized void failed() {
+        if (status_ >= 400 && receivedBytes_ < 0) {
+            // the error body is often never read, count it by its declared length
+            final int length = delegate_.getContentLength();
+            if (length >= 0) {
+                receivedBytes_ = length;
+            }
+        }
+        finished();
+    }
+
+    private InputStream traced(final InputStream in) {
+        if (in == null) {
+            finished();
+            return null;
+        }
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b < 0) {
+                    finished();
+                } else {
+                    addReceived(1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+                final int read = super.read(buffer, offset, count);
+                if (read < 0) {
+                    finished();
+                } else {
+                    addReceived(read);
+                }
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    finished();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void connect() throws IOException {
+        started();
+        try {
+            delegate_.connect();
+        } catch (IOException e) {
+            failed();
+            throw e;
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        delegate_.disconnect();
+        finished();
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return delegate_.usingProxy();
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        started();
+        try {
+            final int status = delegate_.getResponseCode();
+            synchronized (this) {
+                status_ = status;
+            }
+            return status;
+        } catch (IOException e) {
+            failed();
+            throw e;
+        }
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        getResponseCode();
+        return delegate_.getResponseMessage();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        getResponseCode();
+        try {
+            return traced(delegate_.getInputStream());
+        } catch (IOException e) {
+            failed();
+            throw e;
+        }
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        final InputStream errorStream = delegate_.getErrorStream();
+        return errorStream == null ? null : traced(errorStream);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        started();
+        final OutputStream out;
+        try {
+            out = delegate_.getOutputStream();
+        } catch (IOException e) {
+            failed();
+            throw e;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                out.write(b);
+                addSent(1);
+            }
+
+            @Override
+            public void write(final byte[] buffer, final int offset, final int count) throws IOException {
+                out.write(buffer, offset, count);
+                addSent(count);
+            }
+        };
+    }
+
+    @Override
+    public URL getURL() {
+        return delegate_.getURL();
+    }
+
+    @Override
+    public void setRequestMethod(final String method) throws ProtocolException {
+        delegate_.setRequestMethod(method);
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return delegate_.getRequestMethod();
+    }
+
+    @Override
+    public void setRequestProperty(final String key, final String value) {
+        delegate_.setRequestProperty(key, value);
+    }
+
+    @Override
+    public void addRequestProperty(final String key, final String value) {
+        delegate_.addRequestProperty(key, value);
+    }
+
+    @Override
+    public String getRequestProperty(final String key) {
+        return delegate_.getRequestProperty(key);
+    }
+
+    @Override
+    public Map<String, List<String>> getRequestProperties() {
+        return delegate_.getRequestProperties();
+    }
+
+    @Override
+    public void setDoInput(final boolean doInput) {
+        delegate_.setDoInput(doInput);
+    }
+
+    @Override
+    public boolean getDoInput() {
+        return delegate_.getDoInput();
+    }
+
+    @Override
+    public void setDoOutput(final boolean doOutput) {
+        delegate_.setDoOutput(doOutput);
+    }
+
+    @Override
+    public boolean getDoOutput() {
+        return delegate_.getDoOutput();
+    }
+
+    @Override
+    public void setUseCaches(final boolean useCaches) {
+        delegate_.setUseCaches(useCaches);
+    }
+
+    @Override
+    public boolean getUseCaches() {
+        return delegate_.getUseCaches();
+    }
+
+    @Override
+    public void setConnectTimeout(final int timeout) {
+        delegate_.setConnectTimeout(timeout);
+    }
+
+    @Override
+    public int getConnectTimeout() {
+        return delegate_.getConnectTimeout();
+    }
+
+    @Override
+    public void setReadTimeout(final int timeout) {
+        delegate_.setReadTimeout(timeout);
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return delegate_.getReadTimeout();
+    }
+
+    @Override
+    public void setInstanceFollowRedirects(final boolean followRedirects) {
+        delegate_.setInstanceFollowRedirects(followRedirects);
+    }
+
+    @Override
+    public boolean getInstanceFollowRedirects() {
+        return delegate_.getInstanceFollowRedirects();
+    }
+
+    @Override
+    public void setChunkedStreamingMode(final int chunkLength) {
+        delegate_.setChunkedStreamingMode(chunkLength);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(final int contentLength) {
+        delegate_.setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public void setFixedLengthStreamingMode(final long contentLength) {
+        delegate_.setFixedLengthStreamingMode(contentLength);
+    }
+
+    @Override
+    public void setIfModifiedSince(final long ifModifiedSince) {
+        delegate_.setIfModifiedSince(ifModifiedSince);
+    }
+
+    @Override
+    public long getIfModifiedSince() {
+        return delegate_.getIfModifiedSince();
+    }
+
+    @Override
+    public void setAllowUserInteraction(final boolean allowUserInteraction) {
+        delegate_.setAllowUserInteraction(allowUserInteraction);
+    }
+
+    @Override
+    public boolean getAllowUserInteraction() {
+        return delegate_.getAllowUserInteraction();
+    }
+
+    @Override
+    public String getHeaderField(final String name) {
+        responseRequested();
+        return delegate_.getHeaderField(name);
+    }
+
+    @Override
+    public String getHeaderField(final int n) {
+        responseRequested();
+        return delegate_.getHeaderField(n);
+    }
+
+    @Override
+    public String getHeaderFieldKey(final int n) {
+        responseRequested();
+        return delegate_.getHeaderFieldKey(n);
+    }
+
+    @Override
+    public Map<String, List<String>> getHeaderFields() {
+        responseRequested();
+        return delegate_.getHeaderFields();
+    }
+
+    @Override
+    public int getHeaderFieldInt(final String name, final int defaultValue) {
+        responseRequested();
+        return delegate_.getHeaderFieldInt(name, defaultValue);
+    }
+
+    @Override
+    public long getHeaderFieldDate(final String name, final long defaultValue) {
+        responseRequested();
+        return delegate_.getHeaderFieldDate(name, defaultValue);
+    }
+
+    @Override
+    public int getContentLength() {
+        responseRequested();
+        return delegate_.getContentLength();
+    }
+
+    @Override
+    public String getContentType() {
+        responseRequested();
+        return delegate_.getContentType();
+    }
+
+    @Override
+    public String getContentEncoding() {
+        responseRequested();
+        return delegate_.getContentEncoding();
+    }
+
+    @Override
+    public long getDate() {
+        responseRequested();
+        return delegate_.getDate();
+    }
+
+    @Override
+    public long getExpiration() {
+        responseRequested();
+        return delegate_.getExpiration();
+    }
+
+    @Override
+    public long getLastModified() {
+        responseRequested();
+        return delegate_.getLastModified();
+    }
+
+    @Override
+    public Permission getPermission() throws IOException {
+        return delegate_.getPermission();
+    }
+
+    @Override
+    public String toString() {
+        return delegate_.toString();
+    }
+}
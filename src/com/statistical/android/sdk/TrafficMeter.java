@@ -0,0 +1,253 @@
+package com.statistical.android.sdk;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 流量统计和流量预算
+ * Counts the bytes the SDK sends and receives per network type, for the current day
+ * and the current month, and enforces optional daily and monthly budgets. Byte counts
+ * cover URLs, bodies and an estimate for the HTTP headers, not TLS or TCP overhead.
+ * The counters persist in the store and start over when the day or month changes. They
+ * are written at most every SAVE_INTERVAL_IN_MILLISECONDS, when the day or month
+ * changes and when flush() is called, not after every request.
+ */
+class TrafficMeter {
+    /**
+     * 每个请求和响应估计的HTTP头大小
+     * Estimated size of the HTTP headers of one request or response.
+     */
+    static final int ESTIMATED_HEADER_BYTES = 250;
+    /**
+     * 流量统计最长多久写入一次存储
+     */
+    static final long SAVE_INTERVAL_IN_MILLISECONDS = 60 * 1000;
+    private static final String TRAFFIC_PREFERENCE = "TRAFFIC";
+    private static final String DAY_KEY = "day";
+    private static final String MONTH_KEY = "month";
+    private static final String DAILY_KEY = "daily";
+    private static final String MONTHLY_KEY = "monthly";
+    private static final String SENT_KEY = "sent";
+    private static final String RECEIVED_KEY = "received";
+
+    private StatisticalStore store_;
+    private int day_;
+    private int month_;
+    private final Map<String, long[]> daily_ = new HashMap<String, long[]>();
+    private final Map<String, long[]> monthly_ = new HashMap<String, long[]>();
+    private long dailyBudget_;
+    private long monthlyBudget_;
+    private boolean meteredOnly_;
+    private boolean dirty_;
+    private long savedAt_;
+
+    /**
+     * 设置持久化数据的存储，并读取已统计的流量
+     */
+    synchronized void setStore(final StatisticalStore store) {
+        store_ = store;
+        daily_.clear();
+        monthly_.clear();
+        day_ = 0;
+        month_ = 0;
+        final String stored = store == null ? null : store.getPreference(TRAFFIC_PREFERENCE);
+        if (stored != null) {
+            try {
+                final JSONObject json = new JSONObject(stored);
+                day_ = json.optInt(DAY_KEY);
+                month_ = json.optInt(MONTH_KEY);
+                read(json.optJSONObject(DAILY_KEY), daily_);
+                read(json.optJSONObject(MONTHLY_KEY), monthly_);
+            } catch (JSONException e) {
+                store.setPreference(TRAFFIC_PREFERENCE, null);
+            }
+        }
+        rollOver();
+    }
+
+    /**
+     * 设置流量预算
+     * @param dailyBytes bytes per day, 0 for no daily budget
+     * @param monthlyBytes bytes per calendar month, 0 for no monthly budget
+     * @param meteredOnly count only traffic over mobile networks against the budgets
+     */
+    synchronized void setBudget(final long dailyBytes, final long monthlyBytes, final boolean meteredOnly) {
+        dailyBudget_ = dailyBytes;
+        monthlyBudget_ = monthlyBytes;
+        meteredOnly_ = meteredOnly;
+    }
+
+    /**
+     * 记录一次请求的流量
+     * @param networkType network the request went over
+     * @param sent bytes sent, headers excluded
+     * @param received bytes received, headers excluded, 0 if no response arrived
+     */
+    synchronized void record(final String networkType, final long sent, final long received) {
+        rollOver();
+        final long sentWithHeaders = sent + ESTIMATED_HEADER_BYTES;
+        final long receivedWithHeaders = received > 0 ? received + ESTIMATED_HEADER_BYTES : 0;
+        add(daily_, networkType, sentWithHeaders, receivedWithHeaders);
+        add(monthly_, networkType, sentWithHeaders, receivedWithHeaders);
+        dirty_ = true;
+        if (SystemClock.elapsedRealtime() - savedAt_ >= SAVE_INTERVAL_IN_MILLISECONDS) {
+            save();
+        }
+    }
+
+    /**
+     * 写入未保存的流量统计，在上传队列发送完和会话结束时调用
+     */
+    synchronized void flush() {
+        if (dirty_) {
+            save();
+        }
+    }
+
+    /**
+     * 忘记已统计的流量，用于halt
+     */
+    synchronized void clear() {
+        daily_.clear();
+        monthly_.clear();
+        dirty_ = false;
+        if (store_ != null) {
+            store_.setPreference(TRAFFIC_PREFERENCE, null);
+        }
+    }
+
+    /**
+     * 流量预算是否已用完
+     * @param networkType network the next request would go over
+     * @return true if a budget applies to this network and has been spent
+     */
+    synchronized boolean isBudgetExhausted(final String networkType) {
+        if (dailyBudget_ <= 0 && monthlyBudget_ <= 0) {
+            return false;
+        }
+        if (meteredOnly_ && !"mobile".equals(networkType)) {
+            return false;
+        }
+        rollOver();
+        return (dailyBudget_ > 0 && counted(daily_) >= dailyBudget_)
+                || (monthlyBudget_ > 0 && counted(monthly_) >= monthlyBudget_);
+    }
+
+    /**
+     * 返回流量统计
+     * @return bytes sent and received today and this month per network type, keyed like
+     * "daily_mobile_sent", plus the budgets
+     */
+    synchronized Map<String, Long> getUsage() {
+        rollOver();
+        final Map<String, Long> usage = new HashMap<String, Long>();
+        put(usage, DAILY_KEY, daily_);
+        put(usage, MONTHLY_KEY, monthly_);
+        usage.put("daily_budget", dailyBudget_);
+        usage.put("monthly_budget", monthlyBudget_);
+        return usage;
+    }
+
+    private long counted(final Map<String, long[]> counters) {
+        long total = 0;
+        for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+            if (!meteredOnly_ || "mobile".equals(entry.getKey())) {
+                total += entry.getValue()[0] + entry.getValue()[1];
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Starts the counters over when the day or the month has changed.
+     */
+    private void rollOver() {
+        final Calendar calendar = Calendar.getInstance();
+        final int month = calendar.get(Calendar.YEAR) * 100 + calendar.get(Calendar.MONTH) + 1;
+        final int day = month * 100 + calendar.get(Calendar.DAY_OF_MONTH);
+        boolean changed = false;
+        if (day != day_) {
+            daily_.clear();
+            day_ = day;
+            changed = true;
+        }
+        if (month != month_) {
+            monthly_.clear();
+            month_ = month;
+            changed = true;
+        }
+        if (changed) {
+            save();
+        }
+    }
+
+    private static void add(final Map<String, long[]> counters, final String networkType, final long sent, final long received) {
+        long[] counter = counters.get(networkType);
+        if (counter == null) {
+            counter = new long[2];
+            counters.put(networkType, counter);
+        }
+        counter[0] += sent;
+        counter[1] += received;
+    }
+
+    private static void put(final Map<String, Long> usage, final String period, final Map<String, long[]> counters) {
+        for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+            usage.put(period + "_" + entry.getKey() + "_" + SENT_KEY, entry.getValue()[0]);
+            usage.put(period + "_" + entry.getKey() + "_" + RECEIVED_KEY, entry.getValue()[1]);
+        }
+    }
+
+    private static void read(final JSONObject json, final Map<String, long[]> counters) {
+        if (json == null) {
+            return;
+        }
+        final Iterator<String> networkTypes = json.keys();
+        while (networkTypes.hasNext()) {
+            final String networkType = networkTypes.next();
+            final JSONObject counter = json.optJSONObject(networkType);
+            if (counter != null) {
+                add(counters, networkType, counter.optLong(SENT_KEY), counter.optLong(RECEIVED_KEY));
+            }
+        }
+    }
+
+    private static JSONObject write(final Map<String, long[]> counters) throws JSONException {
+        final JSONObject json = new JSONObject();
+        for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+            final JSONObject counter = new JSONObject();
+            counter.put(SENT_KEY, entry.getValue()[0]);
+            counter.put(RECEIVED_KEY, entry.getValue()[1]);
+            json.put(entry.getKey(), counter);
+        }
+        return json;
+    }
+
+    private void save() {
+        if (store_ == null) {
+            return;
+        }
+        dirty_ = false;
+        savedAt_ = SystemClock.elapsedRealtime();
+        try {
+            final JSONObject json = new JSONObject();
+            json.put(DAY_KEY, day_);
+            json.put(MONTH_KEY, month_);
+            json.put(DAILY_KEY, write(daily_));
+            json.put(MONTHLY_KEY, write(monthly_));
+            store_.setPreference(TRAFFIC_PREFERENCE, json.toString());
+        } catch (JSONException e) {
+            if (Statistical.sharedInstance().isLoggingEnabled()) {
+                Log.w(Statistical.TAG, "Can't save traffic counters", e);
+            }
+        }
+    }
+}
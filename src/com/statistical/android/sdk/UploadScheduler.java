@@ -0,0 +1,166 @@
+package com.statistical.android.sdk;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+
+/**
+ * 上传调度
+ * Decides whether queued requests may be uploaded right now, based on connectivity,
+ * whether the network is metered and whether the device is charging. It follows
+ * connectivity changes from NetworkState and power changes, and drains the backlog as
+ * soon as the network returns, instead of waiting for the next event or heartbeat.
+ */
+class UploadScheduler {
+    /**
+     * 超过该数量的积压请求视为大批量上传
+     * Number of queued requests from which the backlog counts as bulk.
+     */
+    static final int BULK_BACKLOG_THRESHOLD = 20;
+    /**
+     * 超过该数量的积压请求在未充电时推迟上传
+     * Number of queued requests from which the backlog is deferred until charging.
+     */
+    static final int LARGE_BATCH_THRESHOLD = 100;
+
+    private final ConnectionQueue connectionQueue_;
+    private Context context_;
+    private BroadcastReceiver receiver_;
+    private volatile boolean charging_ = false;
+    private volatile boolean bulkOnlyOnUnmetered_ = false;
+    private volatile boolean deferLargeBatchesUntilCharging_ = false;
+
+    UploadScheduler(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 设置上传策略
+     * @param bulkOnlyOnUnmetered upload the bulk lane and a large backlog only over unmetered networks
+     * @param deferLargeBatchesUntilCharging upload a large backlog only while charging
+     */
+    void setPolicy(final boolean bulkOnlyOnUnmetered, final boolean deferLargeBatchesUntilCharging) {
+        bulkOnlyOnUnmetered_ = bulkOnlyOnUnmetered;
+        deferLargeBatchesUntilCharging_ = deferLargeBatchesUntilCharging;
+    }
+
+    /**
+     * 开始监听充电状态，网络状态由NetworkState提供
+     * Reads the current power state and starts listening for changes. Network changes
+     * arrive from NetworkState. Calling it again with another context re-registers the
+     * listener.
+     */
+    synchronized void start(final Context context) {
+        stop();
+        context_ = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+        final Intent battery = context_.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            charging_ = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+        }
+
+        receiver_ = new BroadcastReceiver() {
+            @Override
+            public void onReceive(final Context context, final Intent intent) {
+                final String action = intent.getAction();
+                if (Intent.ACTION_POWER_CONNECTED.equals(action)) {
+                    onChargingChanged(true);
+                } else if (Intent.ACTION_POWER_DISCONNECTED.equals(action)) {
+                    onChargingChanged(false);
+                }
+            }
+        };
+        final IntentFilter filter = new IntentFilter(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        context_.registerReceiver(receiver_, filter);
+    }
+
+    /**
+     * 停止监听
+     */
+    synchronized void stop() {
+        if (context_ != null && receiver_ != null) {
+            try {
+                context_.unregisterReceiver(receiver_);
+            } catch (IllegalArgumentException ignored) {
+                // receiver was not registered
+            }
+        }
+        receiver_ = null;
+        context_ = null;
+    }
+
+    /**
+     * 网络状态变化时调用，网络恢复时立即上传积压的请求
+     * Called by NetworkState when connectivity changes. Drains the backlog right away
+     * when the network comes back or becomes unmetered.
+     */
+    void onNetworkChanged(final NetworkState.Snapshot previous, final NetworkState.Snapshot current) {
+        final boolean improved = (current.connected && !previous.connected) || (current.connected && previous.metered && !current.metered);
+        if (improved && connectionQueue_.getCountlyStore() != null) {
+            connectionQueue_.tick();
+        }
+    }
+
+    /**
+     * 充电状态变化时调用
+     * Called when the device is plugged in or unplugged.
+     */
+    void onChargingChanged(final boolean charging) {
+        final boolean improved = charging && !charging_;
+        charging_ = charging;
+        if (improved && connectionQueue_.getCountlyStore() != null) {
+            connectionQueue_.tick();
+        }
+    }
+
+    /**
+     * 当前是否可以上传
+     * @return false if there is no network at all
+     */
+    boolean isConnected() {
+        return connectionQueue_.getNetworkState().get().connected;
+    }
+
+    /**
+     * 当前网络类型
+     * @return "wifi" or "mobile", as reported by DeviceInfo.getNetWorkType
+     */
+    String getNetworkType() {
+        return connectionQueue_.getNetworkState().get().type;
+    }
+
+    /**
+     * 是否允许上传该通道的请求
+     * The critical lane (crashes and session boundaries) goes out whenever there is a
+     * network. Nothing else goes out once the data budget is spent, and the bulk lane and
+     * a large backlog follow the configured policies.
+     * @param lane lane of the next request
+     * @param backlog number of requests currently queued in all lanes
+     */
+    boolean canUpload(final StatisticalStore.Lane lane, final int backlog) {
+        final NetworkState.Snapshot network = connectionQueue_.getNetworkState().get();
+        if (!network.connected) {
+            return false;
+        }
+        if (lane == StatisticalStore.Lane.CRITICAL) {
+            return true;
+        }
+        if (connectionQueue_.getTrafficMeter().isBudgetExhausted(network.type)) {
+            return false;
+        }
+        if (bulkOnlyOnUnmetered_ && network.metered && (lane == StatisticalStore.Lane.BULK || backlog >= BULK_BACKLOG_THRESHOLD)) {
+            return false;
+        }
+        if (deferLargeBatchesUntilCharging_ && !charging_ && backlog >= LARGE_BATCH_THRESHOLD) {
+            return false;
+        }
+        return true;
+    }
+
+    // for unit testing
+    boolean isCharging() {
+        return charging_;
+    }
+}
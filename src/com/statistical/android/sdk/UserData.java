@@ -399,15 +399,12 @@ public class UserData {
                 try {
                     result = java.net.URLEncoder.encode(result, "UTF-8");
 
+                    // picturePath is not part of the request, PictureUploader sends the file itself
                     if(result != null && !result.equals("")){
                         result = "&user_details="+result;
-                        if(picturePath != null)
-                            result += "&"+PICTURE_PATH_KEY+"="+java.net.URLEncoder.encode(picturePath, "UTF-8");
                     }
                     else{
                         result = "";
-                        if(picturePath != null)
-                            result += "&user_details&"+PICTURE_PATH_KEY+"="+java.net.URLEncoder.encode(picturePath, "UTF-8");
                     }
                 } catch (UnsupportedEncodingException ignored) {
                     // should never happen because Android guarantees UTF-8 support
@@ -0,0 +1,247 @@
+package com.statistical.android.sdk;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 视图跟踪
+ * Keeps the open views in memory, timed with System.nanoTime(), together with the
+ * current and the previous view. Starting a view queues a visit event, ending it queues
+ * a duration event with millisecond precision; the events are kept in memory until the
+ * caller moves them into the event queue in one write. When the session stops the
+ * open views are paused and saved once, so a process that dies in the background still
+ * reports how long they were visible when the SDK is initialized again.
+ */
+class ViewTracker {
+    static final String VIEWS_PREFERENCE = "VIEWS";
+    /**
+     * 同时打开的视图上限
+     */
+    static final int MAX_OPEN_VIEWS = 32;
+
+    private static final class OpenView {
+        // time visible before the current start, in nanoseconds
+        long accumulated;
+        // System.nanoTime() of the current start, 0 while paused
+        long startNanos;
+    }
+
+    private final ConnectionQueue connectionQueue_;
+    private final Map<String, OpenView> openViews_ = new LinkedHashMap<String, OpenView>();
+    private final List<Event> pending_ = new ArrayList<Event>();
+    private String currentView_;
+    private String previousView_;
+    private boolean firstView_ = true;
+
+    ViewTracker(final ConnectionQueue connectionQueue) {
+        connectionQueue_ = connectionQueue;
+    }
+
+    /**
+     * 开始一个视图，同名的已打开视图先结束
+     */
+    void startView(final String viewName) {
+        startView(viewName, System.nanoTime());
+    }
+
+    /**
+     * @param nanos System.nanoTime() when the view became visible
+     */
+    synchronized void startView(final String viewName, final long nanos) {
+        endView(viewName, nanos);
+        if (openViews_.size() >= MAX_OPEN_VIEWS) {
+            // the oldest view was never ended
+            endView(openViews_.keySet().iterator().next(), nanos);
+        }
+        final OpenView view = new OpenView();
+        view.startNanos = nanos;
+        openViews_.put(viewName, view);
+        if (currentView_ != null && !currentView_.equals(viewName)) {
+            previousView_ = currentView_;
+        }
+        currentView_ = viewName;
+
+        final HashMap<String, String> segments = new HashMap<String, String>();
+        segments.put("name", viewName);
+        segments.put("visit", "1");
+        segments.put("segment", "Android");
+        if (firstView_) {
+            firstView_ = false;
+            segments.put("start", "1");
+        }
+        pending_.add(event(viewName, segments));
+        connectionQueue_.getResourceSampler().setView(viewName);
+        connectionQueue_.getFrameTracker().viewStarted(viewName);
+    }
+
+    /**
+     * 结束一个视图，未打开的视图忽略
+     */
+    void endView(final String viewName) {
+        endView(viewName, System.nanoTime());
+    }
+
+    /**
+     * @param nanos System.nanoTime() when the view was hidden
+     */
+    synchronized void endView(final String viewName, final long nanos) {
+        final OpenView view = openViews_.remove(viewName);
+        if (view == null) {
+            return;
+        }
+        long visible = view.accumulated;
+        if (view.startNanos != 0) {
+            visible += Math.max(0, nanos - view.startNanos);
+        }
+        pending_.add(durationEvent(viewName, visible / 1000000, connectionQueue_.getFrameTracker().viewEnded(viewName)));
+        if (viewName.equals(currentView_)) {
+            previousView_ = currentView_;
+            currentView_ = null;
+        }
+        connectionQueue_.getResourceSampler().endView(viewName);
+    }
+
+    synchronized String getCurrentView() {
+        return currentView_;
+    }
+
+    synchronized String getPreviousView() {
+        return previousView_;
+    }
+
+    /**
+     * 待写入事件队列的视图事件数
+     */
+    synchronized int pendingCount() {
+        return pending_.size();
+    }
+
+    /**
+     * 取出待写入事件队列的视图事件
+     */
+    synchronized List<Event> drainEvents() {
+        final List<Event> events = new ArrayList<Event>(pending_);
+        pending_.clear();
+        return events;
+    }
+
+    /**
+     * 会话结束时暂停所有打开的视图并保存
+     */
+    synchronized void pause() {
+        connectionQueue_.getFrameTracker().pause();
+        final long now = System.nanoTime();
+        final JSONObject saved = new JSONObject();
+        try {
+            for (Map.Entry<String, OpenView> entry : openViews_.entrySet()) {
+                final OpenView view = entry.getValue();
+                if (view.startNanos != 0) {
+                    view.accumulated += now - view.startNanos;
+                    view.startNanos = 0;
+                }
+                saved.put(entry.getKey(), view.accumulated / 1000000);
+            }
+        } catch (JSONException ignored) {
+            // can't happen when putting longs
+        }
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store != null) {
+            store.setPreference(VIEWS_PREFERENCE, openViews_.isEmpty() ? null : saved.toString());
+        }
+    }
+
+    /**
+     * 会话开始时继续暂停的视图
+     */
+    synchronized void resume() {
+        connectionQueue_.getFrameTracker().resume();
+        final long now = System.nanoTime();
+        for (OpenView view : openViews_.values()) {
+            if (view.startNanos == 0) {
+                view.startNanos = now;
+            }
+        }
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store != null && !openViews_.isEmpty()) {
+            store.setPreference(VIEWS_PREFERENCE, null);
+        }
+    }
+
+    /**
+     * 忘记所有视图和保存的视图，用于halt
+     */
+    synchronized void clear() {
+        openViews_.clear();
+        pending_.clear();
+        currentView_ = null;
+        previousView_ = null;
+        firstView_ = true;
+        final StatisticalStore store = connectionQueue_.getCountlyStore();
+        if (store != null) {
+            store.setPreference(VIEWS_PREFERENCE, null);
+        }
+    }
+
+    /**
+     * 恢复上次进程保存的视图，为它们生成时长事件
+     * Queues duration events for the views a previous process saved when its session
+     * stopped. Views this process has open are left alone.
+     */
+    synchronized void restore(final StatisticalStore store) {
+        final String saved = store.getPreference(VIEWS_PREFERENCE);
+        if (saved == null) {
+            return;
+        }
+        store.setPreference(VIEWS_PREFERENCE, null);
+        try {
+            final JSONObject json = new JSONObject(saved);
+            final Iterator<String> names = json.keys();
+            while (names.hasNext()) {
+                final String name = names.next();
+                if (!openViews_.containsKey(name)) {
+                    pending_.add(durationEvent(name, json.getLong(name), null));
+                }
+            }
+        } catch (JSONException ignored) {
+            // nothing to recover from a broken preference
+        }
+    }
+
+    /**
+     * @param frameSegments frame metrics of the view, or null
+     */
+    private static Event durationEvent(final String viewName, final long millis, final Map<String, String> frameSegments) {
+        final HashMap<String, String> segments = new HashMap<String, String>();
+        if (frameSegments != null) {
+            segments.putAll(frameSegments);
+        }
+        segments.put("name", viewName);
+        segments.put("dur", String.format(Locale.US, "%d.%03d", millis / 1000, millis % 1000));
+        segments.put("segment", "Android");
+        return event(viewName, segments);
+    }
+
+    private static Event event(final String key, final Map<String, String> segments) {
+        final Event event = new Event();
+        event.key = key;
+        event.segmentation = segments;
+        event.count = 1;
+        event.timestamp = Statistical.currentTimestamp();
+        event.hour = Statistical.currentHour();
+        event.dow = Statistical.currentDayOfWeek();
+        return event;
+    }
+
+    // for unit testing
+    synchronized int openViewCount() {
+        return openViews_.size();
+    }
+}
@@ -0,0 +1,83 @@
+package com.statistical.android.sdk;
+
+import android.test.AndroidTestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * 崩溃日志测试
+ * A process killed while appending leaves its slot marked as being written. The next
+ * process must discard that slot and still recover the committed ones around it.
+ */
+public class CrashJournalTests extends AndroidTestCase {
+    private static final String FIRST_CRASH = "app_key=appKey&timestamp=1&journal_test=first";
+    private static final String SECOND_CRASH = "app_key=appKey&timestamp=2&journal_test=second";
+    private static final String TORN_CRASH = "app_key=appKey&timestamp=3&journal_test=torn";
+
+    private File file;
+    private StatisticalStore store;
+    private ConnectionQueue connectionQueue;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        file = new File(getContext().getFilesDir(), CrashJournal.FILE_NAME);
+        file.delete();
+        store = new StatisticalStore(getContext());
+        store.clear();
+        connectionQueue = new ConnectionQueue();
+        connectionQueue.setCountlyStore(store);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.clear();
+        file.delete();
+        super.tearDown();
+    }
+
+    public void testRecoverDiscardsSlotKilledMidWrite() throws IOException {
+        final CrashJournal journal = new CrashJournal(connectionQueue);
+        journal.map(file);
+        assertTrue(journal.append(FIRST_CRASH));
+        // what append leaves behind when the process dies between marking and committing
+        writeTornSlot(1, TORN_CRASH);
+        assertTrue(journal.append(SECOND_CRASH));
+
+        // the next process maps the same file
+        final CrashJournal next = new CrashJournal(connectionQueue);
+        next.map(file);
+        assertEquals(2, next.recover(store));
+
+        final String[] critical = store.connections(StatisticalStore.Lane.CRITICAL);
+        assertEquals(2, critical.length);
+        assertEquals(FIRST_CRASH, critical[0]);
+        assertEquals(SECOND_CRASH, critical[1]);
+        // every slot was emptied, the torn one included
+        assertEquals(0, next.recover(store));
+    }
+
+    public void testRecoverEmptyJournal() throws IOException {
+        final CrashJournal journal = new CrashJournal(connectionQueue);
+        journal.map(file);
+        assertEquals(0, journal.recover(store));
+        assertEquals(0, store.connections(StatisticalStore.Lane.CRITICAL).length);
+    }
+
+    /**
+     * Marks the slot as being written and writes only half of the request.
+     */
+    private void writeTornSlot(final int slot, final String request) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek((long) slot * CrashJournal.SLOT_SIZE);
+            raf.writeInt(CrashJournal.WRITING);
+            raf.writeInt(request.length());
+            raf.writeBytes(request.substring(0, request.length() / 2));
+        } finally {
+            raf.close();
+        }
+    }
+}